@@ -0,0 +1,216 @@
+package fram;
+
+import fram.rotation.OrientationKernel;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Draws the text annotations onto the output images. Fonts are kept by size,
+ * and each piece of text is rendered once for each size and colour into a
+ * bitmap, which is then copied into just the part of the image it covers.
+ * Images from the same directory at the same size all get the same directory
+ * name, so it is only rendered once for all of them.
+ *
+ * The text is rendered without antialiasing at a whole pixel position, as
+ * Graphics2D.drawString would draw it, so the result is the same. Images
+ * which are not packed TYPE_3BYTE_BGR or TYPE_BYTE_GRAY are just drawn on
+ * with drawString, using the cached font.
+ *
+ * @author Jason Leake
+ */
+public class AnnotationRenderer {
+
+    private static final String FONT_NAME = "TimesRoman";
+    // Labels with the index or file name are different for every image, so
+    // the label cache is emptied when it gets this big
+    private static final int MAXIMUM_LABELS = 512;
+    private static final FontRenderContext RENDER_CONTEXT
+            = new FontRenderContext(null, false, false);
+
+    private static final Map<Integer, Font> FONTS = new ConcurrentHashMap<>();
+    private static final Map<LabelKey, Label> LABELS = new ConcurrentHashMap<>();
+
+    /**
+     * Key of a rendered label
+     */
+    private static final class LabelKey {
+
+        private final String text;
+        private final int size;
+        private final int rgb;
+
+        /**
+         * Constructor
+         *
+         * @param text the text
+         * @param size font size
+         * @param rgb colour of the text
+         */
+        LabelKey(String text, int size, int rgb) {
+            this.text = text;
+            this.size = size;
+            this.rgb = rgb;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof LabelKey)) {
+                return false;
+            }
+            final var key = (LabelKey) other;
+            return size == key.size && rgb == key.rgb && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return (text.hashCode() * 31 + size) * 31 + rgb;
+        }
+    }
+
+    /**
+     * Text rendered into a coverage mask, one byte per pixel, with 255 where
+     * the text is and 0 elsewhere
+     */
+    private static final class Label {
+
+        /**
+         * Position of the left of the mask relative to the text origin
+         */
+        final int left;
+        /**
+         * Position of the top of the mask relative to the baseline
+         */
+        final int top;
+        final int width;
+        final int height;
+        final byte[] mask;
+        final int red;
+        final int green;
+        final int blue;
+        final int grey;
+
+        /**
+         * Render text into a mask
+         *
+         * @param text the text
+         * @param font the font
+         * @param colour colour of the text
+         */
+        Label(String text, Font font, Color colour) {
+            final var bounds = font.createGlyphVector(RENDER_CONTEXT, text)
+                    .getPixelBounds(RENDER_CONTEXT, 0, 0);
+            // A pixel of margin all round in case the bounds are a little out
+            left = bounds.x - 1;
+            top = bounds.y - 1;
+            width = Math.max(1, bounds.width + 2);
+            height = Math.max(1, bounds.height + 2);
+            final var image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            final var graphics2d = image.createGraphics();
+            graphics2d.setFont(font);
+            graphics2d.setColor(Color.white);
+            graphics2d.drawString(text, -left, -top);
+            graphics2d.dispose();
+            mask = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            red = colour.getRed();
+            green = colour.getGreen();
+            blue = colour.getBlue();
+            // Same weights as the greyscale colour space uses
+            grey = (int) Math.round(red * 0.299 + green * 0.587 + blue * 0.114);
+        }
+    }
+
+    /**
+     * Draw text on an image
+     *
+     * @param image the image
+     * @param text the text
+     * @param size font size
+     * @param colour colour of the text
+     * @param x position of the left of the text
+     * @param y position of the baseline of the text
+     */
+    public static void draw(BufferedImage image, String text, int size, Color colour,
+            int x, int y) {
+        final var font = getFont(size);
+        if (!OrientationKernel.isSupported(image)) {
+            final var graphics2d = image.createGraphics();
+            graphics2d.setFont(font);
+            graphics2d.setColor(colour);
+            graphics2d.drawString(text, x, y);
+            graphics2d.dispose();
+            return;
+        }
+        final var key = new LabelKey(text, size, colour.getRGB());
+        var label = LABELS.get(key);
+        if (label == null) {
+            if (LABELS.size() >= MAXIMUM_LABELS) {
+                LABELS.clear();
+            }
+            label = new Label(text, font, colour);
+            LABELS.put(key, label);
+        }
+        blit(image, label, x + label.left, y + label.top);
+    }
+
+    /**
+     * Get a font, creating it the first time it is used
+     *
+     * @param size font size
+     * @return the font
+     */
+    private static Font getFont(int size) {
+        return FONTS.computeIfAbsent(size, key -> new Font(FONT_NAME, Font.PLAIN, key));
+    }
+
+    /**
+     * Blend a label into the pixels it covers, clipped to the image
+     *
+     * @param image packed TYPE_3BYTE_BGR or TYPE_BYTE_GRAY image
+     * @param label the label
+     * @param left position of the left of the label mask in the image
+     * @param top position of the top of the label mask in the image
+     */
+    private static void blit(BufferedImage image, Label label, int left, int top) {
+        final var raster = image.getRaster();
+        final var data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final var channels = raster.getNumBands();
+        final var firstX = Math.max(0, -left);
+        final var lastX = Math.min(label.width, image.getWidth() - left);
+        final var firstY = Math.max(0, -top);
+        final var lastY = Math.min(label.height, image.getHeight() - top);
+        for (var y = firstY; y < lastY; y++) {
+            var maskOffset = y * label.width + firstX;
+            var offset = ((top + y) * image.getWidth() + left + firstX) * channels;
+            for (var x = firstX; x < lastX; x++, offset += channels) {
+                final var coverage = label.mask[maskOffset++] & 0xff;
+                if (coverage == 0) {
+                    continue;
+                }
+                if (channels == 1) {
+                    data[offset] = blend(data[offset], label.grey, coverage);
+                } else {
+                    data[offset] = blend(data[offset], label.blue, coverage);
+                    data[offset + 1] = blend(data[offset + 1], label.green, coverage);
+                    data[offset + 2] = blend(data[offset + 2], label.red, coverage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blend the text colour with a pixel component
+     *
+     * @param pixel the component of the image pixel
+     * @param colour the component of the text colour
+     * @param coverage how much of the pixel the text covers, from 0 to 255
+     * @return the blended component
+     */
+    private static byte blend(byte pixel, int colour, int coverage) {
+        return (byte) ((colour * coverage + (pixel & 0xff) * (255 - coverage) + 127) / 255);
+    }
+}
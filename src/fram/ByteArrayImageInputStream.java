@@ -0,0 +1,58 @@
+package fram;
+
+import java.io.IOException;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Image input stream reading from a byte array which is already in memory,
+ * without the copying and caching that ImageIO's streams do
+ *
+ * @author Jason Leake
+ */
+class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+    private final byte[] data;
+    private final int length;
+
+    /**
+     * Constructor
+     *
+     * @param bytes the data
+     * @param count number of bytes of data at the start of the array
+     */
+    ByteArrayImageInputStream(byte[] bytes, int count) {
+        data = bytes;
+        length = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return data[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (count == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        final var available = (int) Math.min(count, length - streamPos);
+        System.arraycopy(data, (int) streamPos, buffer, offset, available);
+        streamPos += available;
+        return available;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
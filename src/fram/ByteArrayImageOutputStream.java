@@ -0,0 +1,110 @@
+package fram;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Image output stream writing to a byte array which grows as needed. It can
+ * be emptied and used again, so one stream can be kept for each thread and
+ * the array is only reallocated when a bigger image comes along.
+ *
+ * @author Jason Leake
+ */
+class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int length = 0;
+
+    /**
+     * Empty the stream so that it can be used again
+     */
+    void clear() {
+        length = 0;
+        streamPos = 0;
+        flushedPos = 0;
+        bitOffset = 0;
+    }
+
+    /**
+     * Write the contents of the stream to a file
+     *
+     * @param channel the file
+     * @throws IOException thrown if it cannot be written
+     */
+    void writeTo(FileChannel channel) throws IOException {
+        final var buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        checkClosed();
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        data[(int) streamPos++] = (byte) value;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        checkClosed();
+        flushBits();
+        ensureCapacity(streamPos + count);
+        System.arraycopy(buffer, offset, data, (int) streamPos, count);
+        streamPos += count;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return data[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (count == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        final var available = (int) Math.min(count, length - streamPos);
+        System.arraycopy(data, (int) streamPos, buffer, offset, available);
+        streamPos += available;
+        return available;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Make sure the array can hold the specified number of bytes
+     *
+     * @param size number of bytes
+     * @throws IOException thrown if the stream would be too big for an array
+     */
+    private void ensureCapacity(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Image too large");
+        }
+        if (size > data.length) {
+            data = Arrays.copyOf(data, (int) Math.max(size, Math.min(
+                    (long) data.length * 2, Integer.MAX_VALUE - 8)));
+        }
+    }
+}
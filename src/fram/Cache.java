@@ -1,25 +1,45 @@
 package fram;
 
+import fram.cache.CacheEntry;
+import fram.cache.CacheStore;
+import fram.cache.EntryLock;
+import fram.cache.LogCacheStore;
+import fram.cache.RawImageCache;
+import fram.cache.SqliteCacheStore;
+import fram.cache.TierManager;
+import fram.cache.WriteBehindQueue;
 import fram.filesystem.FileCopier;
+import fram.rotation.OrientationKernel;
+import fram.rotation.RasterPool;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Handles the caching of files
@@ -28,21 +48,69 @@ import java.util.logging.Logger;
  */
 public class Cache {
 
-    private Connection con;
+    private CacheStore outputStore;
+    private CacheStore baseStore;
+    private CacheStore quarantineStore;
     private File cacheDirectory;
     private boolean newCache;
     private SimpleDateFormat simpleDateFormat = new SimpleDateFormat("ddMMyy-hhmmss-SSS");
     private int counter = 0;
+    private RawImageCache rawImageCache = null;
+    private TierManager tierManager = null;
+    private WriteBehindQueue writeQueue;
+    private final JpegEncoder outputEncoder;
+    private final JpegEncoder baseEncoder = new JpegEncoder(BASE_IMAGE_QUALITY);
     private static final String CACHE_DIRECTORY = "framcache";
+    private static final String DATABASE_FILE = "framcache.db";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Subdirectory for the locks on individual cache entries
+    private static final String LOCK_DIRECTORY = "locks";
+    // Lock files older than this are no longer in use
+    private static final long STALE_LOCK_AGE = 60L * 60 * 1000;
+    private static final long PROCESS_ID = ProcessHandle.current().pid();
+    // Prefixes of the names of the cached images and indexes in an export
+    private static final String BUNDLE_FILES = "files/";
+    private static final String BUNDLE_INDEX = "index/";
+    // Subdirectory for the uncompressed base images
+    private static final String RAW_DIRECTORY = "raw";
+    // Fully processed output images, keyed by the input file content and the
+    // annotation text drawn on them
+    private static final String OUTPUT_TABLE = "outputimages";
+    // Base images, before the annotation text has been added, keyed by the
+    // input file content
+    private static final String BASE_TABLE = "contentimages";
+    // Input files which could not be processed, keyed by input file name.
+    // The hash field holds the size and modification time of the file when
+    // it failed, and the cached file field the fallback action taken.
+    private static final String QUARANTINE_TABLE = "quarantine";
+    // A high JPEG quality is used for base images because they are decoded
+    // and encoded again when they are annotated
+    private static final int BASE_IMAGE_QUALITY = 95;
+    // Fraction of the heap which images waiting to be written to the cache
+    // may use
+    private static final int WRITE_QUEUE_HEAP_FRACTION = 8;
 
     /**
      * Constructor
      */
     public Cache() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param configuration program configuration, or null for the defaults
+     */
+    public Cache(Configuration configuration) {
         System.out.println("setup cache");
         newCache = false;
 
-        cacheDirectory = new File(CACHE_DIRECTORY);
+        outputEncoder = new JpegEncoder(configuration);
+        cacheDirectory = new File(configuration == null ? CACHE_DIRECTORY
+                : configuration.getCacheDirectory());
         if (cacheDirectory.exists()) {
             if (cacheDirectory.isFile()) {
                 cacheDirectory.delete();
@@ -57,127 +125,573 @@ public class Cache {
         if (newCache) {
             System.out.println("Cache directory created");
         }
-        try {
-            con = DriverManager.getConnection("jdbc:sqlite:"
-                    + cacheDirectory.getAbsolutePath()
-                    + File.separator + "framcache.db");
-            if (con != null) {
-                System.out.println("Connection established");
+        if (configuration != null) {
+            // Images generated with other settings are kept in the cache as
+            // well, so switching between settings doesn't invalidate it
+            System.out.println("Cache base image settings " + configuration.getBaseFingerprint());
+            System.out.println("Cache annotation settings " + configuration.getAnnotationFingerprint());
+        }
+        if (configuration != null && configuration.getRawCacheSize() > 0) {
+            rawImageCache = new RawImageCache(new File(cacheDirectory, RAW_DIRECTORY),
+                    configuration.getRawCacheSize() * 1024L * 1024L);
+        }
+        if (configuration != null && (configuration.getCacheBudget() > 0
+                || !configuration.getColdCacheDirectory().isEmpty())) {
+            final var coldDirectory = configuration.getColdCacheDirectory();
+            tierManager = new TierManager(cacheDirectory,
+                    configuration.getCacheBudget() * 1024L * 1024L,
+                    coldDirectory.isEmpty() ? null : new File(coldDirectory),
+                    configuration.getColdCacheBudget() * 1024L * 1024L);
+        }
+        outputStore = openStore(OUTPUT_TABLE);
+        baseStore = openStore(BASE_TABLE);
+        quarantineStore = openStore(QUARANTINE_TABLE);
+        writeQueue = new WriteBehindQueue("cache writer",
+                Runtime.getRuntime().maxMemory() / WRITE_QUEUE_HEAP_FRACTION);
+    }
 
-                createTable();
-            }
+    /**
+     * Open the store for one of the cache layers. SQLite is used if its
+     * driver is available, otherwise the pure Java log structured store.
+     *
+     * @param table name of the cache layer
+     * @return the store, or null if no store could be opened
+     */
+    private CacheStore openStore(String table) {
+        try {
+            final var store = new SqliteCacheStore(new File(cacheDirectory, DATABASE_FILE), table);
+            System.out.println("Connection established");
+            return store;
         } catch (SQLException ex) {
-            System.out.println("No sqlite driver found");
+            System.out.println("No sqlite driver found, using log cache store for " + table);
         }
+        try {
+            return new LogCacheStore(new File(cacheDirectory, table + LOG_SUFFIX));
+        } catch (IOException ex) {
+            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
     }
 
     /**
-     * Get the path of the cached version of the file with the specified input
-     * file name and hash
+     * Get the path of the cached output image with the specified key
      *
-     * @param file input file name
-     * @param hash of cached and output file
+     * @param key output image key, from the input file content and the
+     * annotation drawn on it
      * @return path to cached file, or null if not present in cache
      */
-    public Path getCachedFile(Path file, String hash) {
-        if (hash != null) {
-            PreparedStatement preparedStatement = null;
+    public Path getCachedFile(String key) {
+        return lookup(outputStore, key);
+    }
+
+    /**
+     * Get the cached base image for the specified input file content hash.
+     * The base image is the rotated, converted and resized image before any
+     * annotation text has been drawn on it. The uncompressed tier is tried
+     * first, as it does not need decoding.
+     *
+     * @param hash hash of input file content
+     * @return base image, or null if not present in cache
+     */
+    public BufferedImage getBaseImage(String hash) {
+        if (rawImageCache != null) {
+            final var image = rawImageCache.get(hash);
+            if (image != null) {
+                return image;
+            }
+        }
+        final var cachedFile = lookup(baseStore, hash);
+        if (cachedFile != null) {
             try {
-                final var sql = "SELECT cachedFile FROM cachedfiles WHERE filename=? AND sha256=?";
-                preparedStatement = con.prepareStatement(sql);
-                preparedStatement.setString(1, file.toFile().getAbsolutePath());
-                preparedStatement.setString(2, hash);
-                // execute select SQL statement
-                final var resultSet = preparedStatement.executeQuery();
-                if (resultSet.next()) {
-                    // Found entry
-                    return Paths.get(resultSet.getString("cachedFile"));
+                final var image = ImageDecoder.read(cachedFile, 0, 0);
+                if (image != null && rawImageCache != null) {
+                    rawImageCache.put(hash, image);
                 }
+                return image;
+            } catch (IOException ex) {
+                Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store the specified file in the cash
+     *
+     * @param key output image key
+     * @param hash hash of input file content
+     * @param fileToCache path of output file to cache
+     */
+    public void cacheFile(String key, String hash, File fileToCache) {
+        writeQueue.submit(OUTPUT_TABLE + key, 0, () -> store(outputStore, key, hash, target -> {
+            if (!FileCopier.copyFile(fileToCache.toPath(), target.toPath())) {
+                throw new IOException("Could not copy " + fileToCache);
+            }
+        }));
+    }
+
+    /**
+     * Store a temporary file in the cache as an output image, and delete it
+     * once it has been stored
+     *
+     * @param key output image key
+     * @param hash hash of input file content
+     * @param temporaryFile path of the file, which the cache takes over
+     */
+    public void cacheTemporaryFile(String key, String hash, File temporaryFile) {
+        final Runnable delete = () -> temporaryFile.delete();
+        writeQueue.submit(OUTPUT_TABLE + key, 0, () -> {
+            try {
+                store(outputStore, key, hash, target -> {
+                    if (!FileCopier.copyFile(temporaryFile.toPath(), target.toPath())) {
+                        throw new IOException("Could not copy " + temporaryFile);
+                    }
+                });
+            } finally {
+                delete.run();
+            }
+        }, delete);
+    }
+
+    /**
+     * Store an annotated output image in the cache. The image is handed over
+     * to the cache, which writes it later and then releases it to the
+     * {@link RasterPool}, so the caller must not use it afterwards.
+     *
+     * @param key output image key
+     * @param hash hash of input file content
+     * @param image annotated image
+     */
+    public void cacheOutputImage(String key, String hash, BufferedImage image) {
+        writeQueue.submit(OUTPUT_TABLE + key, getSize(image), () -> {
+            try {
+                store(outputStore, key, hash, target -> outputEncoder.write(image, target));
+            } finally {
+                RasterPool.release(image);
+            }
+        }, () -> RasterPool.release(image));
+    }
+
+    /**
+     * Check whether the base image for the specified input file content hash
+     * is in the cache, without reading it
+     *
+     * @param hash hash of input file content
+     * @return true if it is in the cache
+     */
+    public boolean hasBaseImage(String hash) {
+        return lookup(baseStore, hash) != null;
+    }
 
-            } catch (SQLException ex) {
-                System.out.println(ex.getLocalizedMessage());
+    /**
+     * Store the base image for the specified input file content hash in the
+     * cache. A copy of the image is written later, so the caller can go on
+     * to draw on the image straight away.
+     *
+     * @param hash hash of input file content
+     * @param image rotated, converted and resized image before annotation
+     * @param entryLock lock on the entry, which is kept until the image has
+     * been written so that other processes wait for it, or null
+     */
+    public void cacheBaseImage(String hash, BufferedImage image, EntryLock entryLock) {
+        final BufferedImage copy;
+        if (OrientationKernel.isSupported(image)) {
+            copy = RasterPool.acquire(image.getWidth(), image.getHeight(), image.getType());
+            image.copyData(copy.getRaster());
+        } else {
+            copy = new BufferedImage(image.getColorModel(), image.copyData(null),
+                    image.isAlphaPremultiplied(), null);
+        }
+        if (entryLock != null) {
+            entryLock.retain();
+        }
+        final Runnable free = () -> {
+            RasterPool.release(copy);
+            if (entryLock != null) {
+                entryLock.close();
+            }
+        };
+        writeQueue.submit(BASE_TABLE + hash, getSize(copy), () -> {
+            try {
+                if (rawImageCache != null) {
+                    rawImageCache.put(hash, copy);
+                }
+                store(baseStore, hash, hash, target -> baseEncoder.write(copy, target));
             } finally {
-                if (preparedStatement != null) {
-                    try {
-                        preparedStatement.close();
-                    } catch (SQLException ex) {
+                free.run();
+            }
+        }, free);
+    }
+
+    /**
+     * Get the memory used by an image, for limiting the size of the write
+     * queue
+     *
+     * @param image the image
+     * @return approximate size in bytes
+     */
+    private static long getSize(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight()
+                * image.getRaster().getNumBands();
+    }
+
+
+    /**
+     * Get the fallback action for an input file which failed to be processed
+     * in an earlier run. Once the file has changed it is no longer
+     * quarantined.
+     *
+     * @param file input file
+     * @return the fallback action, or null if the file is not quarantined
+     */
+    public String getQuarantineAction(Path file) {
+        if (quarantineStore == null) {
+            return null;
+        }
+        final var filename = file.toFile().getAbsolutePath();
+        final var entry = quarantineStore.lookup(filename);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.getHash().equals(getStatKey(file.toFile()))) {
+            return entry.getCachedFile();
+        }
+        // The file has changed, so give it another chance
+        quarantineStore.delete(filename);
+        return null;
+    }
+
+    /**
+     * Record that an input file could not be processed, so that later runs
+     * go straight to the fallback action until the file changes
+     *
+     * @param file input file
+     * @param action fallback action taken
+     */
+    public void quarantine(Path file, String action) {
+        if (quarantineStore != null) {
+            final var filename = file.toFile().getAbsolutePath();
+            System.out.println(String.format("Quarantine %s, fallback %s", filename, action));
+            quarantineStore.put(new CacheEntry(filename, getStatKey(file.toFile()), action));
+        }
+    }
+
+    /**
+     * Describe the size and modification time of a file, which change when
+     * the file is changed
+     *
+     * @param file the file
+     * @return description of the file
+     */
+    private static String getStatKey(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * Lock the cache entry with the specified hash against other processes
+     * sharing the cache, while the image for it is generated
+     *
+     * @param hash hash of input file
+     * @return the lock, to be closed when the image has been cached
+     */
+    public EntryLock lockEntry(String hash) {
+        if (hash == null) {
+            return new EntryLock(null);
+        }
+        return new EntryLock(new File(new File(cacheDirectory, LOCK_DIRECTORY),
+                hash + LOCK_SUFFIX));
+    }
+
+    /**
+     * Look up the cached file with the specified key
+     *
+     * @param store store holding the cache layer
+     * @param key cache key
+     * @return path to cached file, or null if not present in cache
+     */
+    private Path lookup(CacheStore store, String key) {
+        if (key != null && store != null) {
+            final var entry = store.lookup(key);
+            // Another process sharing the cache may have deleted the file
+            if (entry != null && new File(entry.getCachedFile()).exists()) {
+                // Found entry
+                final var cachedFile = Paths.get(entry.getCachedFile());
+                if (tierManager != null) {
+                    // Move it to the hot tier if it is in the cold tier
+                    final var usedFile = tierManager.use(cachedFile);
+                    if (!usedFile.equals(cachedFile)) {
+                        store.put(new CacheEntry(key, entry.getHash(), usedFile.toString()));
+                        relocate(tierManager.balance());
                     }
+                    return usedFile;
                 }
+                return cachedFile;
             }
         }
         return null;
     }
 
     /**
-     * Store the specified file in the cash
+     * Write a new cached file and replace the cache entry with the specified
+     * key with it, deleting any previously cached file. The file is written
+     * under a temporary name and then renamed, so that other processes
+     * sharing the cache never see a partly written file.
      *
-     * @param file input file name
-     * @param hash hash of output file
-     * @param fileToCache path of output file to cache
+     * @param store store holding the cache layer
+     * @param key cache key
+     * @param hash hash of input file content
+     * @param writer writes the data to be cached
      */
-    public void cacheFile(Path file, String hash, File fileToCache) {
-        if (hash != null) {
-            try {
-                // Delete any existing cached file
-		var sql = "SELECT cachedFile FROM cachedfiles WHERE filename=?";
-		var prepStatement = con.prepareStatement(sql);
-                prepStatement.setString(1, file.toFile().getAbsolutePath());
-                // execute select SQL statement
-                final var resultSet = prepStatement.executeQuery();
-                if (resultSet.next()) {
-                    final var filename = resultSet.getString("cachedFile");
-                    System.out.println("Delete old cached file " + filename);
-                    new File(filename).delete();
+    private void store(CacheStore store, String key, String hash, CachedFileWriter writer) {
+        if (key != null && store != null) {
+            final var outputFile = writeCachedFile(writer);
+            if (outputFile != null) {
+                replaceEntry(store, key, hash, outputFile);
+                if (tierManager != null) {
+                    relocate(tierManager.balance());
                 }
-                prepStatement.close();
-
-                // Update the entry with the new file
-                sql = "INSERT OR REPLACE INTO cachedfiles(filename, sha256, cachedfile) VALUES(?,?,?)";
-                prepStatement = con.prepareStatement(sql);
-                final var outputFile = makeOutputFile();
-                prepStatement.setString(1, file.toFile().getAbsolutePath());
-                prepStatement.setString(2, hash);
-                prepStatement.setString(3, outputFile.getAbsolutePath());
-                prepStatement.executeUpdate();
-                prepStatement.close();
-                FileCopier.copyFile(fileToCache.toPath(), outputFile.toPath());
-            } catch (SQLException ex) {
-                Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
 
     /**
-     * Create the database table if it does not exist
+     * Write a new file into the cache directory
+     *
+     * @param writer writes the data to be cached
+     * @return the new file, or null if it could not be written
      */
-    private void createTable() {
-        final var sql = "CREATE TABLE IF NOT EXISTS cachedfiles ("
-	    + "	filename TEXT NOT NULL PRIMARY KEY,"
-	    + "	sha256 TEXT NOT NULL,"
-	    + "	cachedfile TEXT NOT NULL"
-	    + ");";
+    private File writeCachedFile(CachedFileWriter writer) {
+        final var outputFile = makeOutputFile();
+        final var tempFile = new File(outputFile.getPath() + TEMP_SUFFIX);
         try {
-            final var statement = con.createStatement();
-            statement.closeOnCompletion();
-            statement.execute(sql);
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            outputFile.getParentFile().mkdirs();
+            writer.write(tempFile);
+            Files.move(tempFile.toPath(), outputFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+            tempFile.delete();
+            return null;
+        }
+        if (tierManager != null) {
+            tierManager.added(outputFile);
+        }
+        return outputFile;
+    }
+
+    /**
+     * Point a cache entry at a new cached file, deleting the file it
+     * previously pointed at
+     *
+     * @param store store holding the cache layer
+     * @param key cache key
+     * @param hash hash of input file content
+     * @param outputFile new cached file
+     */
+    private void replaceEntry(CacheStore store, String key, String hash, File outputFile) {
+        // Update the entry with the new file
+        final var oldEntry = store.lookup(key);
+        store.put(new CacheEntry(key, hash, outputFile.getAbsolutePath()));
+
+        // Delete any existing cached file
+        if (oldEntry != null && !oldEntry.getCachedFile().equals(outputFile.getAbsolutePath())) {
+            System.out.println("Delete old cached file " + oldEntry.getCachedFile());
+            new File(oldEntry.getCachedFile()).delete();
+        }
+    }
+
+    /**
+     * Write the cache index and cached images into a single archive, which
+     * can be imported into the cache on another machine. The cache keys
+     * don't depend on where the input files are, so the photos can be in a
+     * different place on the other machine. The uncompressed tier is not
+     * exported as it is regenerated from the cached images when needed.
+     *
+     * @param bundle archive file to write
+     * @return true if successful
+     */
+    public boolean exportBundle(File bundle) {
+        final var elapsedTime = new ElapsedTime();
+        System.out.println("Export cache to " + bundle);
+        writeQueue.flush();
+        var count = 0;
+        var skipped = 0;
+        try (var zip = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(bundle)))) {
+            for (var table : new String[]{OUTPUT_TABLE, BASE_TABLE}) {
+                final var store = getStore(table);
+                if (store == null) {
+                    continue;
+                }
+                final List<CacheEntry> entries = new LinkedList<>();
+                store.forEach(entries::add);
+                final var index = new StringBuilder();
+                // JPEG files don't compress, so don't waste time trying
+                zip.setLevel(Deflater.NO_COMPRESSION);
+                for (var entry : entries) {
+                    final var cachedFile = new File(entry.getCachedFile());
+                    if (!cachedFile.exists()) {
+                        skipped++;
+                        continue;
+                    }
+                    final var archiveName = table + "/" + cachedFile.getParentFile().getName()
+                            + "/" + cachedFile.getName();
+                    zip.putNextEntry(new ZipEntry(BUNDLE_FILES + archiveName));
+                    Files.copy(cachedFile.toPath(), zip);
+                    zip.closeEntry();
+                    index.append(entry.getKey()).append('\t')
+                            .append(entry.getHash()).append('\t')
+                            .append(archiveName).append('\n');
+                    count++;
+                }
+                zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+                zip.putNextEntry(new ZipEntry(BUNDLE_INDEX + table));
+                zip.write(index.toString().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        System.out.println(String.format("Exported %d cached files, skipped %d", count, skipped));
+        elapsedTime.reportElapsedTime("Cache export");
+        return true;
+    }
+
+    /**
+     * Read an archive written by {@link #exportBundle} into the cache
+     *
+     * @param bundle archive file to read
+     * @return true if successful
+     */
+    public boolean importBundle(File bundle) {
+        final var elapsedTime = new ElapsedTime();
+        System.out.println("Import cache from " + bundle);
+        writeQueue.flush();
+        // Map from name of file in archive to the file it was extracted to
+        final Map<String, File> extracted = new HashMap<>();
+        var count = 0;
+        try (var zip = new ZipInputStream(new BufferedInputStream(
+                new FileInputStream(bundle)))) {
+            var zipEntry = zip.getNextEntry();
+            while (zipEntry != null) {
+                final var name = zipEntry.getName();
+                if (name.startsWith(BUNDLE_FILES)) {
+                    final var outputFile = writeCachedFile(target
+                            -> Files.copy(zip, target.toPath(), StandardCopyOption.REPLACE_EXISTING));
+                    if (outputFile != null) {
+                        extracted.put(name.substring(BUNDLE_FILES.length()), outputFile);
+                    }
+                } else if (name.startsWith(BUNDLE_INDEX)) {
+                    final var store = getStore(name.substring(BUNDLE_INDEX.length()));
+                    // Don't close the reader as that would close the archive
+                    final var reader = new BufferedReader(
+                            new InputStreamReader(zip, StandardCharsets.UTF_8));
+                    var line = reader.readLine();
+                    while (line != null) {
+                        final var fields = line.split("\t");
+                        if (store != null && fields.length == 3
+                                && extracted.containsKey(fields[2])) {
+                            replaceEntry(store, fields[0], fields[1],
+                                    extracted.remove(fields[2]));
+                            count++;
+                        }
+                        line = reader.readLine();
+                    }
+                }
+                zipEntry = zip.getNextEntry();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            // Anything left over was not in the index
+            for (var file : extracted.values()) {
+                file.delete();
+            }
+            if (tierManager != null) {
+                relocate(tierManager.balance());
+            }
+        }
+        System.out.println(String.format("Imported %d cached files", count));
+        elapsedTime.reportElapsedTime("Cache import");
+        return true;
+    }
+
+    /**
+     * Get the store for a cache layer
+     *
+     * @param table name of cache layer
+     * @return the store, or null if the layer is unknown or not open
+     */
+    private CacheStore getStore(String table) {
+        if (table.equals(OUTPUT_TABLE)) {
+            return outputStore;
+        } else if (table.equals(BASE_TABLE)) {
+            return baseStore;
         }
+        return null;
     }
 
     /**
-     * Generate a unique filename
+     * Update the cache entries for files which have been moved between tiers
+     * or deleted
+     *
+     * @param moves map from old path of each file to its new path, or to
+     * null if the file has been deleted
+     */
+    private void relocate(Map<String, String> moves) {
+        if (moves.isEmpty()) {
+            return;
+        }
+        for (var store : new CacheStore[]{outputStore, baseStore}) {
+            if (store != null) {
+                final List<CacheEntry> movedEntries = new LinkedList<>();
+                store.forEach(entry -> {
+                    if (moves.containsKey(entry.getCachedFile())) {
+                        movedEntries.add(entry);
+                    }
+                });
+                for (var entry : movedEntries) {
+                    final var newPath = moves.get(entry.getCachedFile());
+                    if (newPath == null) {
+                        store.delete(entry.getKey());
+                    } else {
+                        store.put(new CacheEntry(entry.getKey(), entry.getHash(), newPath));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes data to a file which is to be cached
+     */
+    private interface CachedFileWriter {
+
+        /**
+         * Write the data
+         *
+         * @param target file to write to
+         * @throws IOException thrown if the file cannot be written
+         */
+        void write(File target) throws IOException;
+    }
+
+    /**
+     * Generate a unique filename. The process ID is included as other
+     * processes may be adding files to the same cache.
      *
      * @return unique filename
      */
-    private File makeOutputFile() {
+    private synchronized File makeOutputFile() {
         if (counter > 99999) {
             counter = 0;
         }
-        final var filename = String.format("%s-%05d.jpg",
-					   simpleDateFormat.format(new Date()), counter);
-        return new File(String.format("%s%s%02d", CACHE_DIRECTORY,
-                File.separator, (counter++ % 100)), filename);
+        final var filename = String.format("%s-%d-%05d.jpg",
+                simpleDateFormat.format(new Date()), PROCESS_ID, counter);
+        return new File(new File(cacheDirectory,
+                String.format("%02d", (counter++ % 100))), filename);
     }
 
     /**
@@ -188,58 +702,34 @@ public class Cache {
         final var elapsedTime = new ElapsedTime();
         System.out.println();
         System.out.println("Clean cache");
-        final var directory = new File(CACHE_DIRECTORY);
+        writeQueue.flush();
+        final var directory = cacheDirectory;
         final SortedSet<String> filesInDatabase = new TreeSet<>();
-        ResultSet resultSet = null;
-        try {
-            final var sql = "SELECT cachedFile FROM cachedfiles ORDER BY cachedFile";
-            final var queryStatement = con.createStatement();
-            queryStatement.closeOnCompletion();
-            resultSet = queryStatement.executeQuery(sql);
-            while (resultSet.next()) {
-                filesInDatabase.add(resultSet.getString(1));
-            }
-        } catch (SQLException ex) {
-            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            try {
-                if (resultSet != null && !resultSet.isClosed()) {
-                    resultSet.close();
-                }
-            } catch (SQLException ex) {
-                Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+        for (var store : new CacheStore[]{outputStore, baseStore}) {
+            if (store != null) {
+                store.forEach(entry -> filesInDatabase.add(entry.getCachedFile()));
             }
         }
 
         // Check for files in the database but not in the cache directory
         final var inputFiles = getFiles(directory);
-        PreparedStatement preparedStatement = null;
-        try {
-            final var sql = "DELETE FROM cachedfiles WHERE cachedFile = ?";
-            preparedStatement = con.prepareStatement(sql);
-
-            for (var fileInDatabase : filesInDatabase) {
-                if (inputFiles.contains(fileInDatabase)) {
-                    // File exists in database and in the cache directory
-                } else {
-                    // File exists in database but not in the cache directory
-                    System.out.println("Delete database entry " + fileInDatabase);
-                    preparedStatement.setString(1, fileInDatabase);
-                    preparedStatement.execute();
-                }
-            }
-        } catch (SQLException ex) {
-            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            try {
-                if (resultSet != null && !resultSet.isClosed()) {
-                    resultSet.close();
-                }
-                if (preparedStatement != null) {
-                    preparedStatement.close();
+        if (tierManager != null && tierManager.getColdDirectory() != null) {
+            inputFiles.addAll(getFiles(tierManager.getColdDirectory()));
+        }
+        for (var store : new CacheStore[]{outputStore, baseStore}) {
+            if (store != null) {
+                final List<String> obsoleteEntries = new LinkedList<>();
+                store.forEach(entry -> {
+                    if (!inputFiles.contains(entry.getCachedFile())) {
+                        // File exists in database but not in the cache directory
+                        System.out.println("Delete database entry " + entry.getCachedFile());
+                        obsoleteEntries.add(entry.getKey());
+                    }
+                });
+                for (var key : obsoleteEntries) {
+                    store.delete(key);
                 }
-            } catch (SQLException ex) {
-                Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+                System.out.println("Cache store: " + store.stats());
             }
         }
 
@@ -252,9 +742,25 @@ public class Cache {
                 System.out.println("Delete " + file);
             }
         }
+        deleteStaleLocks();
         elapsedTime.reportElapsedTime("Cache clean");
     }
 
+    /**
+     * Delete entry lock files which haven't been used for a while
+     */
+    private void deleteStaleLocks() {
+        final var lockFiles = new File(cacheDirectory, LOCK_DIRECTORY).listFiles();
+        if (lockFiles != null) {
+            final var staleTime = System.currentTimeMillis() - STALE_LOCK_AGE;
+            for (var lockFile : lockFiles) {
+                if (lockFile.lastModified() < staleTime) {
+                    lockFile.delete();
+                }
+            }
+        }
+    }
+
     /**
      * Get the files in the directory tree as a sorted set
      *
@@ -279,9 +785,15 @@ public class Cache {
         List<File> files = new LinkedList<>();
         for (var fileEntry : directory.listFiles()) {
             if (fileEntry.isDirectory()) {
-                files.addAll(getFilesList(fileEntry));
-            } else if (!fileEntry.getName().equals("framcache.db")) {
-                // Exclude the database file
+                if (!fileEntry.getName().equals(RAW_DIRECTORY)
+                        && !fileEntry.getName().equals(LOCK_DIRECTORY)) {
+                    // The raw tier and the locks are managed separately
+                    files.addAll(getFilesList(fileEntry));
+                }
+            } else if (!fileEntry.getName().equals(DATABASE_FILE)
+                    && !fileEntry.getName().endsWith(LOG_SUFFIX)
+                    && !fileEntry.getName().endsWith(LOCK_SUFFIX)) {
+                // Exclude the database, log and lock files
                 files.add(fileEntry);
             }
         }
@@ -289,18 +801,19 @@ public class Cache {
     }
 
     /**
-     * Make sure the database connection is closed
+     * Make sure the cache stores are closed
      */
     public void close() {
-        if (con != null) {
-            try {
-                con.close();
-                con = null;
-            } catch (SQLException ex) {
-                Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+        // Finish the queued writes while the stores are still open
+        writeQueue.close();
+        for (var store : new CacheStore[]{outputStore, baseStore, quarantineStore}) {
+            if (store != null) {
+                store.close();
             }
         }
-
+        outputStore = null;
+        baseStore = null;
+        quarantineStore = null;
     }
 
     //  THESE ARE JUST USED BY THE UNIT TESTS
@@ -325,18 +838,9 @@ public class Cache {
     public void createTestEntry() {
         final var outputFile = makeOutputFile();
         System.out.println("Create dummy cache database entry " + outputFile);
-        final var sql = "INSERT OR REPLACE INTO cachedfiles(filename, sha256, cachedfile) VALUES(?,?,?)";
-        PreparedStatement pstmt = null;
-        try {
+        if (outputStore != null) {
             // Update the entry with the new file
-            pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, "test");
-            pstmt.setString(2, "1234");
-            pstmt.setString(3, outputFile.getAbsolutePath());
-            pstmt.executeUpdate();
-            pstmt.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(Cache.class.getName()).log(Level.SEVERE, null, ex);
+            outputStore.put(new CacheEntry("test", "1234", outputFile.getAbsolutePath()));
         }
     }
 
@@ -1,7 +1,29 @@
 package fram;
 
 import fram.Options.Option;
+import static fram.Options.Option.CACHE_BUDGET;
+import static fram.Options.Option.CACHE_DIRECTORY;
+import static fram.Options.Option.COLD_CACHE_BUDGET;
+import static fram.Options.Option.COLD_CACHE_DIRECTORY;
+import static fram.Options.Option.EXPORT_CACHE;
+import static fram.Options.Option.IMPORT_CACHE;
+import static fram.Options.Option.CHROMA_SUBSAMPLING;
+import static fram.Options.Option.FRAME_HEIGHT;
+import static fram.Options.Option.FRAME_WIDTH;
 import static fram.Options.Option.MINIMUM_WIDTH;
+import static fram.Options.Option.NO_DIRECTORY_NAME;
+import static fram.Options.Option.NO_ROTATE_IMAGES;
+import static fram.Options.Option.OPTIMIZE_HUFFMAN;
+import static fram.Options.Option.PREFILL_RATE;
+import static fram.Options.Option.PREFILL_THREADS;
+import static fram.Options.Option.PROGRESSIVE;
+import static fram.Options.Option.QUALITY;
+import static fram.Options.Option.RAW_CACHE;
+import static fram.Options.Option.REMOVE_BORDER;
+import static fram.Options.Option.RESAMPLE;
+import static fram.Options.Option.SHOW_DATE;
+import static fram.Options.Option.SHOW_FILENAME;
+import static fram.Options.Option.STRIP_METADATA;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -153,6 +175,170 @@ public class Configuration {
         return options.getValue(MINIMUM_WIDTH);
     }
 
+    /**
+     * Get the width of the photo frame display
+     *
+     * @return width in pixels, 0 if images are not fitted to the frame width
+     */
+    public int getFrameWidth() {
+        return options.getValue(FRAME_WIDTH);
+    }
+
+    /**
+     * Get the height of the photo frame display
+     *
+     * @return height in pixels, 0 if images are not fitted to the frame
+     * height
+     */
+    public int getFrameHeight() {
+        return options.getValue(FRAME_HEIGHT);
+    }
+
+    /**
+     * Check whether images are shrunk to fit the frame rather than enlarged
+     * to the minimum width
+     *
+     * @return true if images are fitted to the frame
+     */
+    public boolean isFitToFrame() {
+        return getFrameWidth() > 0 || getFrameHeight() > 0;
+    }
+
+    /**
+     * Get a canonical description of the settings which affect the base
+     * images, before annotation. Base images generated with different
+     * settings are kept apart in the cache.
+     *
+     * @return description of the settings
+     */
+    public String getBaseFingerprint() {
+        return options.fingerprint(FRAME_HEIGHT, FRAME_WIDTH, MINIMUM_WIDTH, NO_ROTATE_IMAGES,
+                REMOVE_BORDER, RESAMPLE);
+    }
+
+    /**
+     * Get a canonical description of the settings which affect the
+     * annotation drawn on the output images, and how they are encoded.
+     * Output images generated with different settings are kept apart in the
+     * cache.
+     *
+     * @return description of the settings
+     */
+    public String getAnnotationFingerprint() {
+        return options.fingerprint(CHROMA_SUBSAMPLING, NO_DIRECTORY_NAME, OPTIMIZE_HUFFMAN,
+                PROGRESSIVE, QUALITY, SHOW_DATE, SHOW_FILENAME, STRIP_METADATA);
+    }
+
+    /**
+     * Get the JPEG quality of the output images
+     *
+     * @return quality, from 1 to 100
+     */
+    public int getJpegQuality() {
+        return options.getValue(QUALITY);
+    }
+
+    /**
+     * Get the chroma subsampling of the output images
+     *
+     * @return one of the JpegEncoder CHROMA settings
+     */
+    public String getChromaSubsampling() {
+        return options.getString(CHROMA_SUBSAMPLING);
+    }
+
+    /**
+     * Get the filter used to resize images
+     *
+     * @return one of the ResamplingFilter names
+     */
+    public String getResamplingFilter() {
+        return options.getString(RESAMPLE);
+    }
+
+    /**
+     * Get the disk budget for the uncompressed base image cache
+     *
+     * @return budget in megabytes, 0 if the uncompressed cache is not used
+     */
+    public int getRawCacheSize() {
+        return options.getValue(RAW_CACHE);
+    }
+
+    /**
+     * Get the cache directory
+     *
+     * @return cache directory path
+     */
+    public String getCacheDirectory() {
+        return options.getString(CACHE_DIRECTORY);
+    }
+
+    /**
+     * Get the disk budget for the cache directory. When it is exceeded, the
+     * least recently used files are moved to the cold cache directory.
+     *
+     * @return budget in megabytes, 0 for no limit
+     */
+    public int getCacheBudget() {
+        return options.getValue(CACHE_BUDGET);
+    }
+
+    /**
+     * Get the cold cache tier directory
+     *
+     * @return cold cache directory path, empty if there isn't one
+     */
+    public String getColdCacheDirectory() {
+        return options.getString(COLD_CACHE_DIRECTORY);
+    }
+
+    /**
+     * Get the disk budget for the cold cache directory
+     *
+     * @return budget in megabytes, 0 for no limit
+     */
+    public int getColdCacheBudget() {
+        return options.getValue(COLD_CACHE_BUDGET);
+    }
+
+    /**
+     * Get the archive file to export the cache to
+     *
+     * @return archive file path, empty if the cache is not to be exported
+     */
+    public String getExportCache() {
+        return options.getString(EXPORT_CACHE);
+    }
+
+    /**
+     * Get the archive file to import into the cache
+     *
+     * @return archive file path, empty if nothing is to be imported
+     */
+    public String getImportCache() {
+        return options.getString(IMPORT_CACHE);
+    }
+
+    /**
+     * Get the number of threads used to prefill the cache
+     *
+     * @return number of threads
+     */
+    public int getPrefillThreads() {
+        return options.getValue(PREFILL_THREADS);
+    }
+
+    /**
+     * Get the maximum rate of file reading and writing when prefilling the
+     * cache
+     *
+     * @return megabytes per second, 0 for no limit
+     */
+    public int getPrefillRate() {
+        return options.getValue(PREFILL_RATE);
+    }
+
     /**
      * Set the options to the specified set of options
      *
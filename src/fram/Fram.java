@@ -5,6 +5,7 @@ import fram.rotation.RotationCounter;
 import java.io.File;
 import java.util.Locale;
 import java.util.logging.Logger;
+import javax.imageio.ImageIO;
 
 /**
  * Copies .jpg files onto a memory stick for displaying on a photo frame device.
@@ -20,12 +21,36 @@ import java.util.logging.Logger;
  * 1.006 - Clear --cache if --showIndex is set
  * 1.007 - Display heap size when program runs.  Start migration to JDK 11
  * 1.008 - Delete lock file if more tha n a month old
+ * 1.009 - Cache base images before annotation, so --showIndex can use --cache
+ * 1.010 - Add --rawCache uncompressed base image cache
+ * 1.011 - Add --cacheDirectory, which can be shared by several processes
+ * 1.012 - Add hot and cold cache tiers
+ * 1.013 - Add --exportCache and --importCache
+ * 1.014 - Add --prefill
+ * 1.015 - Key the cache on file contents so renamed photos stay cached
+ * 1.016 - Quarantine input files which cannot be read
+ * 1.017 - Keep images made with different settings apart in the cache
+ * 1.018 - Hard link cached images when on the same file system
+ * 1.019 - Write to the cache in the background
+ * 1.020 - Lossless rotation of images which are not annotated
+ * 1.021 - Rotate decoded images by copying the raster bytes directly
+ * 1.022 - Crop, rotate, convert and resize decoded images in one pass
+ * 1.023 - Decode large images at reduced resolution
+ * 1.024 - Added --frameWidth and --frameHeight to fit images to the frame
+ * 1.025 - Added JPEG encoder options
+ * 1.026 - Reuse image readers and writers, and bypass the ImageIO disk cache
+ * 1.027 - Reuse the pixel buffers of images between files
+ * 1.028 - Keep greyscale images single channel, and convert CMYK and YCCK
+ * 1.029 - Added --resample to choose area averaging or Lanczos resizing
+ * 1.030 - Cache the fonts and rendered text of the annotations
+ * 1.031 - --removeBorder now crops the border, found from the raster bytes
+ * 1.032 - Share the border crop between the scans in a directory
  *
  * @author Jason Leake
  */
 public class Fram {
 
-    private static final String VERSION = "1.008";
+    private static final String VERSION = "1.032";
     private static final Logger logger = Logger.getLogger(Fram.class.getName());
     private ProcessFiles processFiles;
 
@@ -70,6 +95,9 @@ public class Fram {
 
         // This is maintained for the unit tests which use it
         RotationCounter.reset();
+        // Images are decoded and encoded in memory, so ImageIO's temporary
+        // files would only slow things down
+        ImageIO.setUseCache(false);
         // Guard against two instances of the same program running out of
         // the same directory at the same time
         final var lock = new RunningLock();
@@ -102,13 +130,29 @@ public class Fram {
                 return false;
             }
 
-            if (output.isEmpty()) {
+            final var configuration = new Configuration();
+            configuration.setOptions(options);
+            final var importCache = configuration.getImportCache();
+            final var exportCache = configuration.getExportCache();
+            final var cacheCommand = !importCache.isEmpty() || !exportCache.isEmpty();
+            final var prefill = options.isSet(Options.Option.PREFILL);
+            if (output.isEmpty() && !cacheCommand && !prefill) {
                 System.out.println("No output directory specified");
                 new DoHelp().help();
                 return false;
             }
 
-            return runMainProgram(input, output, options);
+            // An import is done before processing so that the run can use
+            // it, and an export afterwards so that it includes the run
+            var ok = importCache.isEmpty()
+                    || runCacheCommand(configuration, importCache, true);
+            if (ok && (!output.isEmpty() || prefill)) {
+                ok = runMainProgram(input, output, options);
+            }
+            if (ok && !exportCache.isEmpty()) {
+                ok = runCacheCommand(configuration, exportCache, false);
+            }
+            return ok;
 
         } finally {
             lock.delete();
@@ -133,8 +177,10 @@ public class Fram {
         System.out.println("Starting at " + DateAndTimeNow.get());
 
         final var configuration = new Configuration();
+        // The output directory isn't used when just filling the cache
         boolean ok = configuration.setInputDirectory(new File(input))
-                && configuration.setOutputDirectory(new File(output))
+                && (options.isSet(Options.Option.PREFILL)
+                || configuration.setOutputDirectory(new File(output)))
                 && configuration.setOptions(options);
         System.out.print(configuration.getErrorMessage());
         if (ok) {
@@ -153,6 +199,28 @@ public class Fram {
         return ok;
     }
 
+    /**
+     * Import a cache archive into the cache, or export the cache to an
+     * archive
+     *
+     * @param configuration configuration settings
+     * @param bundle archive file
+     * @param importBundle true to import the archive, false to export to it
+     * @return true if successful
+     */
+    private boolean runCacheCommand(Configuration configuration, String bundle,
+            boolean importBundle) {
+        final var cache = new Cache(configuration);
+        try {
+            if (importBundle) {
+                return cache.importBundle(new File(bundle));
+            }
+            return cache.exportBundle(new File(bundle));
+        } finally {
+            cache.close();
+        }
+    }
+
     /**
      * Get file processor, for unit tests
      *
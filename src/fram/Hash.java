@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
@@ -19,27 +20,25 @@ import java.util.logging.Logger;
  */
 public class Hash {
 
-    private static MessageDigest digest = null;
-    private static Configuration theConfiguration;
+    private final MessageDigest digest;
+    private final Configuration theConfiguration;
     private static final String CLASSNAME = Hash.class.getName();
 
     /**
-     * Constructor Re-uses message digest class.
+     * Constructor. Each instance has its own message digest, as they are not
+     * thread safe and the cache can be filled by several threads.
      *
      * @param config program configuration
      * @throws NoSuchAlgorithmException exception thrown if SHA-256 hash is not available
      */
     public Hash(Configuration config) throws NoSuchAlgorithmException {
         theConfiguration = config;
-        if (digest == null) {
-            digest = MessageDigest.getInstance("SHA-256");
-        } else {
-            digest.reset();
-        }
+        digest = MessageDigest.getInstance("SHA-256");
     }
 
     /**
-     * Compute the hash, from the file contents AND the filename
+     * Compute the hash of the file contents and the settings which affect the
+     * base image generated from it
      *
      * @param inputFile input file to process
      * @return its hash
@@ -55,9 +54,8 @@ public class Hash {
             while ((read = inputStream.read(buffer)) > 0) {
                 digest.update(buffer, 0, read);
             }
-            // Add in the filename
-            byte[] fileNameChars = inputFile.getAbsolutePath().getBytes();
-            digest.update(fileNameChars, 0, fileNameChars.length);
+            // The filename is deliberately left out, so that renaming or
+            // moving a photo doesn't lose its cached images
 
             // Add in the image orientation exif data as if this is changed then
             // the output file needs to be regenerated.  Someone might have spotted
@@ -67,19 +65,15 @@ public class Hash {
             byte[] orientationArray = byteBuffer.array();
             digest.update(orientationArray, 0, orientationArray.length);
 
-            // Add in the width setting.  If this has changed then
-            // the output file might need to be regenerated
-            byteBuffer = ByteBuffer.allocate(4).putInt(theConfiguration.getMinimumWidth());
-            byte[] minimumWidthArray = byteBuffer.array();
-            digest.update(minimumWidthArray, 0, minimumWidthArray.length);
+            // Add in the settings which affect the base image, such as the
+            // minimum width.  Images generated with different settings then
+            // have different hashes, so they can be cached side by side.
+            byte[] fingerprint = theConfiguration.getBaseFingerprint()
+                    .getBytes(StandardCharsets.UTF_8);
+            digest.update(fingerprint, 0, fingerprint.length);
 
             // Now convert the hash to a string
-            byte[] hash = digest.digest();
-            BigInteger bigInt = new BigInteger(1, hash);
-            output = bigInt.toString(16);
-            while (output.length() < 32) {
-                output = "0" + output;
-            }
+            output = toHexString(digest.digest());
         } catch (IOException ex) {
             Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
             ex.printStackTrace(System.err);
@@ -96,4 +90,38 @@ public class Hash {
 
         return output;
     }
+
+    /**
+     * Compute the key of an output image, from the hash of the input file,
+     * the settings which affect the annotation and a description of the
+     * annotation drawn on it. Anything about the output image which depends
+     * on where the input file is, such as its directory name, must be in the
+     * annotation description.
+     *
+     * @param hash hash of input file from {@link #generate}
+     * @param annotation description of the annotation
+     * @return the key
+     */
+    public String generate(String hash, String annotation) {
+        digest.reset();
+        digest.update(hash.getBytes(StandardCharsets.UTF_8));
+        digest.update(theConfiguration.getAnnotationFingerprint().getBytes(StandardCharsets.UTF_8));
+        digest.update(annotation.getBytes(StandardCharsets.UTF_8));
+        return toHexString(digest.digest());
+    }
+
+    /**
+     * Convert a digest to a string
+     *
+     * @param hash the digest
+     * @return hexadecimal string
+     */
+    private static String toHexString(byte[] hash) {
+        BigInteger bigInt = new BigInteger(1, hash);
+        String output = bigInt.toString(16);
+        while (output.length() < 32) {
+            output = "0" + output;
+        }
+        return output;
+    }
 }
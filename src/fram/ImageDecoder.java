@@ -0,0 +1,326 @@
+package fram;
+
+import fram.rotation.RasterPool;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+
+/**
+ * Decodes image files, at reduced resolution when the image is much larger
+ * than it needs to be. Only every n'th pixel of every n'th row is kept as the
+ * file is decoded, so the full size image is never held in memory and the
+ * colour conversion is only done for the pixels kept.
+ *
+ * The decoded image is kept at least twice the target size in each
+ * direction, so that the final resize still has enough pixels to filter
+ * from.
+ *
+ * Each thread keeps its own JPEG reader and file buffer, which are reset and
+ * used again for the next file, so the plugin lookup and the decoder setup
+ * are only done once per thread. The whole file is read into the buffer and
+ * decoded from there, without going through ImageIO's stream cache. Files
+ * which are not JPEGs get a reader of their own. Colour and greyscale images
+ * are decoded into an image leased from the {@link RasterPool}, and
+ * greyscale images are kept as TYPE_BYTE_GRAY.
+ *
+ * CMYK and YCCK JPEGs are converted to TYPE_3BYTE_BGR pixel by pixel from
+ * their raw components. Files written by Adobe software store the CMYK
+ * values inverted, which is what the Adobe marker segment indicates. The
+ * conversion is the simple one without a colour profile, so the colours are
+ * approximate.
+ *
+ * A file which can't be decoded, whatever the reason, gives an
+ * IIOException, so that it can be told apart from a failure to read the
+ * file, which may not happen again.
+ *
+ * @author Jason Leake
+ */
+public class ImageDecoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int CMYK_BANDS = 4;
+    // Adobe transform code for YCCK
+    private static final int ADOBE_YCCK = 2;
+    // YCbCr to RGB conversion, as tables of fixed point values indexed by the
+    // chroma component, in the same way as libjpeg
+    private static final int SCALE_BITS = 16;
+    private static final int[] CR_RED = new int[256];
+    private static final int[] CB_BLUE = new int[256];
+    private static final int[] CR_GREEN = new int[256];
+    private static final int[] CB_GREEN = new int[256];
+
+    static {
+        final var half = 1 << (SCALE_BITS - 1);
+        for (var index = 0; index < 256; index++) {
+            final var chroma = index - 128;
+            CR_RED[index] = (int) Math.round(1.40200 * chroma);
+            CB_BLUE[index] = (int) Math.round(1.77200 * chroma);
+            CR_GREEN[index] = (int) Math.round(-0.71414 * (1 << SCALE_BITS) * chroma);
+            CB_GREEN[index] = (int) Math.round(-0.34414 * (1 << SCALE_BITS) * chroma) + half;
+        }
+    }
+
+    /**
+     * How the components of a four component JPEG are stored
+     */
+    private enum CmykEncoding {
+        /**
+         * Ink amounts
+         */
+        CMYK,
+        /**
+         * Ink amounts subtracted from 255, as Adobe software writes them
+         */
+        INVERTED_CMYK,
+        /**
+         * Cyan, magenta and yellow ink amounts converted as if they were RGB
+         * to YCbCr, followed by inverted black
+         */
+        YCCK
+    }
+    private static final ThreadLocal<ImageReader> JPEG_READER
+            = ThreadLocal.withInitial(ImageDecoder::createJpegReader);
+    private static final ThreadLocal<FileBuffer> BUFFER
+            = ThreadLocal.withInitial(FileBuffer::new);
+
+    /**
+     * Buffer which a file is read into. It only grows, so after the first
+     * few files it is big enough and is not reallocated.
+     */
+    private static class FileBuffer {
+
+        byte[] data = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    /**
+     * Decode an image file
+     *
+     * @param file image file
+     * @param targetWidth width the image will be reduced to, in the
+     * orientation it is stored in the file, or 0 for no limit
+     * @param targetHeight height the image will be reduced to, or 0 for no
+     * limit
+     * @return the decoded image
+     * @throws IIOException thrown if the file cannot be decoded
+     * @throws IOException thrown if the file cannot be read
+     */
+    public static BufferedImage read(Path file, int targetWidth, int targetHeight)
+            throws IOException {
+        final var buffer = BUFFER.get();
+        final var length = readFile(file, buffer);
+        final var input = new ByteArrayImageInputStream(buffer.data, length);
+        var reader = JPEG_READER.get();
+        final var pooled = reader != null && reader.getOriginatingProvider().canDecodeInput(input);
+        if (!pooled) {
+            final var readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IIOException("No image reader for " + file);
+            }
+            reader = readers.next();
+        }
+        try {
+            reader.setInput(input, true, true);
+            final var param = reader.getDefaultReadParam();
+            final var factor = getSubsampling(reader.getWidth(0), reader.getHeight(0),
+                    targetWidth, targetHeight);
+            if (factor > 1) {
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            }
+            final var types = reader.getImageTypes(0);
+            final var type = types.hasNext() ? types.next() : null;
+            if (pooled && (type == null || type.getNumBands() == CMYK_BANDS)) {
+                // CMYK and YCCK JPEGs are read as their raw components and
+                // converted here, as ImageIO can't convert them itself, or
+                // only slowly through a colour profile
+                final var encoding = getCmykEncoding(reader.getImageMetadata(0));
+                if (encoding != null) {
+                    return convertCmyk(reader.readRaster(0, param), encoding);
+                }
+            }
+            // Colour and greyscale JPEGs are decoded straight into an image
+            // from the pool
+            BufferedImage destination = null;
+            if (type != null && (type.getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR
+                    || type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY)) {
+                destination = RasterPool.acquire((reader.getWidth(0) + factor - 1) / factor,
+                        (reader.getHeight(0) + factor - 1) / factor,
+                        type.getBufferedImageType());
+                param.setDestination(destination);
+            }
+            try {
+                return reader.read(0, param);
+            } catch (IOException | RuntimeException ex) {
+                RasterPool.release(destination);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            // The readers throw these for some kinds of corrupt file
+            throw new IIOException("Cannot decode " + file, ex);
+        } finally {
+            if (pooled) {
+                reader.reset();
+            } else {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Read the whole of a file into a buffer, growing it if necessary
+     *
+     * @param file the file
+     * @param buffer the buffer
+     * @return number of bytes read
+     * @throws IOException thrown if the file cannot be read
+     */
+    private static int readFile(Path file, FileBuffer buffer) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IIOException("File too large: " + file);
+            }
+            if (size > buffer.data.length) {
+                buffer.data = new byte[(int) size];
+            }
+            final var bytes = ByteBuffer.wrap(buffer.data, 0, (int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                // Keep reading until the buffer is full or the file ends
+            }
+            return bytes.position();
+        }
+    }
+
+    /**
+     * Work out how much an image can be subsampled while keeping it at least
+     * twice the target size
+     *
+     * @param width width of the image in the file
+     * @param height height of the image in the file
+     * @param targetWidth target width, or 0 for no limit
+     * @param targetHeight target height, or 0 for no limit
+     * @return subsampling factor, 1 for full size
+     */
+    static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+        var factor = Integer.MAX_VALUE;
+        if (targetWidth > 0) {
+            factor = Math.min(factor, width / (targetWidth * 2));
+        }
+        if (targetHeight > 0) {
+            factor = Math.min(factor, height / (targetHeight * 2));
+        }
+        return factor == Integer.MAX_VALUE ? 1 : Math.max(1, factor);
+    }
+
+    /**
+     * Create a JPEG reader for a thread
+     *
+     * @return the reader, or null if there isn't a JPEG plugin
+     */
+    private static ImageReader createJpegReader() {
+        final var readers = ImageIO.getImageReadersByFormatName("jpeg");
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * Work out how the components of a JPEG are stored, if it has four
+     *
+     * @param metadata image metadata
+     * @return the encoding, or null if it isn't a four component image
+     */
+    private static CmykEncoding getCmykEncoding(IIOMetadata metadata) {
+        final var tree = metadata.getAsTree(METADATA_FORMAT);
+        var components = 0;
+        var adobeTransform = -1;
+        for (var node = tree.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!node.getNodeName().equals("markerSequence")) {
+                continue;
+            }
+            for (var marker = node.getFirstChild(); marker != null;
+                    marker = marker.getNextSibling()) {
+                final var attributes = marker.getAttributes();
+                if (marker.getNodeName().equals("sof")) {
+                    components = Integer.parseInt(
+                            attributes.getNamedItem("numFrameComponents").getNodeValue());
+                } else if (marker.getNodeName().equals("app14Adobe")) {
+                    adobeTransform = Integer.parseInt(
+                            attributes.getNamedItem("transform").getNodeValue());
+                }
+            }
+        }
+        if (components != CMYK_BANDS) {
+            return null;
+        } else if (adobeTransform == ADOBE_YCCK) {
+            return CmykEncoding.YCCK;
+        } else if (adobeTransform >= 0) {
+            return CmykEncoding.INVERTED_CMYK;
+        }
+        return CmykEncoding.CMYK;
+    }
+
+    /**
+     * Convert the raw components of a CMYK or YCCK JPEG to a TYPE_3BYTE_BGR
+     * image
+     *
+     * @param raster raw components, four bytes per pixel
+     * @param encoding how the components are stored
+     * @return the image, leased from the {@link RasterPool}
+     */
+    private static BufferedImage convertCmyk(Raster raster, CmykEncoding encoding) {
+        final var width = raster.getWidth();
+        final var height = raster.getHeight();
+        final var image = RasterPool.acquire(width, height);
+        final var target = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        final var row = new byte[width * CMYK_BANDS];
+        var targetOffset = 0;
+        for (var y = 0; y < height; y++) {
+            raster.getDataElements(raster.getMinX(), raster.getMinY() + y, width, 1, row);
+            for (var offset = 0; offset < row.length; offset += CMYK_BANDS) {
+                var cyan = row[offset] & 0xff;
+                var magenta = row[offset + 1] & 0xff;
+                var yellow = row[offset + 2] & 0xff;
+                var black = row[offset + 3] & 0xff;
+                if (encoding == CmykEncoding.YCCK) {
+                    // Gives the ink amounts, which are then inverted
+                    final var luma = cyan;
+                    final var blue = magenta;
+                    final var red = yellow;
+                    cyan = 255 - clamp(luma + CR_RED[red]);
+                    magenta = 255 - clamp(luma
+                            + ((CB_GREEN[blue] + CR_GREEN[red]) >> SCALE_BITS));
+                    yellow = 255 - clamp(luma + CB_BLUE[blue]);
+                } else if (encoding == CmykEncoding.CMYK) {
+                    cyan = 255 - cyan;
+                    magenta = 255 - magenta;
+                    yellow = 255 - yellow;
+                    black = 255 - black;
+                }
+                // The values are now 255 minus the amount of ink, so each
+                // colour is what is left after its ink and the black
+                target[targetOffset++] = (byte) ((yellow * black + 127) / 255);
+                target[targetOffset++] = (byte) ((magenta * black + 127) / 255);
+                target[targetOffset++] = (byte) ((cyan * black + 127) / 255);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Limit a value to the range of a byte
+     *
+     * @param value the value
+     * @return the value, from 0 to 255
+     */
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,210 @@
+package fram;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import org.w3c.dom.Node;
+
+/**
+ * Writes JPEG files with the encoder settings chosen on the command line:
+ * quality, progressive or baseline, optimized Huffman tables, chroma
+ * subsampling and whether to leave out the JFIF header.
+ *
+ * Each thread keeps its own JPEG writer and output buffer, which are reset
+ * and used again for the next image. The image is encoded into the buffer
+ * and then written to the file in one go.
+ *
+ * @author Jason Leake
+ */
+public class JpegEncoder {
+
+    /**
+     * Chroma subsampling of 2x2, which is the ImageIO default
+     */
+    public static final String CHROMA_420 = "420";
+    /**
+     * Chroma subsampling of 2x1
+     */
+    public static final String CHROMA_422 = "422";
+    /**
+     * No chroma subsampling
+     */
+    public static final String CHROMA_444 = "444";
+
+    private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int DEFAULT_QUALITY = 75;
+    private static final ThreadLocal<ImageWriter> WRITER
+            = ThreadLocal.withInitial(JpegEncoder::createWriter);
+    private static final ThreadLocal<ByteArrayImageOutputStream> BUFFER
+            = ThreadLocal.withInitial(ByteArrayImageOutputStream::new);
+
+    private final int quality;
+    private final boolean progressive;
+    private final boolean optimizeHuffman;
+    private final String chroma;
+    private final boolean stripMetadata;
+
+    /**
+     * Constructor for the output images
+     *
+     * @param configuration program configuration, or null for the defaults
+     */
+    public JpegEncoder(Configuration configuration) {
+        if (configuration == null) {
+            quality = DEFAULT_QUALITY;
+            progressive = false;
+            optimizeHuffman = false;
+            chroma = CHROMA_420;
+            stripMetadata = false;
+        } else {
+            quality = configuration.getJpegQuality();
+            progressive = configuration.isSet(Options.Option.PROGRESSIVE);
+            optimizeHuffman = configuration.isSet(Options.Option.OPTIMIZE_HUFFMAN);
+            chroma = configuration.getChromaSubsampling();
+            stripMetadata = configuration.isSet(Options.Option.STRIP_METADATA);
+        }
+    }
+
+    /**
+     * Constructor for images written at a fixed quality, with the other
+     * settings at their defaults
+     *
+     * @param qualityPercent quality, from 1 to 100
+     */
+    public JpegEncoder(int qualityPercent) {
+        quality = qualityPercent;
+        progressive = false;
+        optimizeHuffman = false;
+        chroma = CHROMA_420;
+        stripMetadata = false;
+    }
+
+    /**
+     * Check whether a chroma subsampling setting is recognised
+     *
+     * @param setting the setting
+     * @return true if it is valid
+     */
+    public static boolean isValidChroma(String setting) {
+        return CHROMA_420.equals(setting) || CHROMA_422.equals(setting)
+                || CHROMA_444.equals(setting);
+    }
+
+    /**
+     * Check whether any of the quality, progressive, Huffman table or chroma
+     * subsampling settings differ from the defaults. If they do, the output
+     * images must be encoded with them rather than transformed losslessly.
+     *
+     * @return true if the encoder settings have been changed
+     */
+    public boolean isCustomised() {
+        return quality != DEFAULT_QUALITY || progressive || optimizeHuffman
+                || !CHROMA_420.equals(chroma);
+    }
+
+    /**
+     * Write an image to a JPEG file
+     *
+     * @param image the image
+     * @param outputFile output file
+     * @throws IOException thrown if the file cannot be written
+     */
+    public void write(BufferedImage image, File outputFile) throws IOException {
+        final var writer = WRITER.get();
+        if (writer == null) {
+            throw new IOException("No JPEG writer for " + outputFile);
+        }
+        final var stream = BUFFER.get();
+        stream.clear();
+        try {
+            final var param = (JPEGImageWriteParam) writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100.0f);
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            param.setOptimizeHuffmanTables(optimizeHuffman);
+            final var metadata = writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(image), param);
+            setMetadata(metadata, image.getRaster().getNumBands());
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.reset();
+        }
+        try (var channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            stream.writeTo(channel);
+        }
+    }
+
+    /**
+     * Create a JPEG writer for a thread
+     *
+     * @return the writer, or null if there isn't a JPEG plugin
+     */
+    private static ImageWriter createWriter() {
+        final var writers = ImageIO.getImageWritersByFormatName("jpg");
+        return writers.hasNext() ? writers.next() : null;
+    }
+
+    /**
+     * Set the chroma subsampling in the metadata, and remove the JFIF header
+     * if metadata is being stripped
+     *
+     * @param metadata default metadata for the image
+     * @param bands number of colour components
+     * @throws IOException thrown if the metadata cannot be changed
+     */
+    private void setMetadata(IIOMetadata metadata, int bands) throws IOException {
+        final var tree = metadata.getAsTree(METADATA_FORMAT);
+        for (var node = tree.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals("JPEGvariety") && stripMetadata) {
+                while (node.hasChildNodes()) {
+                    node.removeChild(node.getFirstChild());
+                }
+            } else if (node.getNodeName().equals("markerSequence") && bands == 3) {
+                setSampling(node);
+            }
+        }
+        try {
+            metadata.setFromTree(METADATA_FORMAT, tree);
+        } catch (IIOInvalidTreeException ex) {
+            throw new IOException("Cannot set JPEG metadata", ex);
+        }
+    }
+
+    /**
+     * Set the sampling factors of the luminance component in the frame
+     * header
+     *
+     * @param markerSequence marker sequence node of the metadata
+     */
+    private void setSampling(Node markerSequence) {
+        for (var node = markerSequence.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (!node.getNodeName().equals("sof")) {
+                continue;
+            }
+            final var luminance = node.getFirstChild();
+            if (luminance == null) {
+                return;
+            }
+            final var attributes = luminance.getAttributes();
+            final var horizontal = CHROMA_444.equals(chroma) ? "1" : "2";
+            final var vertical = CHROMA_420.equals(chroma) ? "2" : "1";
+            attributes.getNamedItem("HsamplingFactor").setNodeValue(horizontal);
+            attributes.getNamedItem("VsamplingFactor").setNodeValue(vertical);
+        }
+    }
+}
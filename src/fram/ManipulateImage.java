@@ -47,12 +47,13 @@ public class ManipulateImage {
         final var newHeight = image.getHeight() * newWidth / image.getWidth();
         final var resizedImage = new BufferedImage(newWidth, newHeight, image.getType());
         final var graphics2d = resizedImage.createGraphics();
-        graphics2d.drawImage(image, 0, 0, newWidth, newHeight, null);
-        graphics2d.dispose();
+        // The hints have to be set before drawing to have any effect
         graphics2d.setComposite(AlphaComposite.Src);
         graphics2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         graphics2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         graphics2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics2d.drawImage(image, 0, 0, newWidth, newHeight, null);
+        graphics2d.dispose();
         return resizedImage;
     }
 
@@ -100,10 +101,10 @@ public class ManipulateImage {
      */
     public static BufferedImage make3ByteBgr(BufferedImage image) {
         // Convert monochrome etc images to 3 byte BGR
-        final var newImage = new BufferedImage(image.getHeight(), 
-					       image.getWidth(), BufferedImage.TYPE_3BYTE_BGR);
+        final var newImage = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
         final var graphics = (Graphics2D) newImage.getGraphics();
-        graphics.drawImage(image, 0, 0, image.getHeight(), image.getWidth(), null);
+        graphics.drawImage(image, 0, 0, image.getWidth(), image.getHeight(), null);
         graphics.dispose();
         return newImage;
     }
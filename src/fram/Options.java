@@ -1,7 +1,10 @@
 package fram;
 
+import fram.rotation.ResamplingFilter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Structure holding command line options
@@ -24,6 +27,24 @@ public class Options {
      * {@link #REMOVE_BORDER} 
      * {@link #CACHE} 
      * {@link #MINIMUM_WIDTH}
+     * {@link #RAW_CACHE}
+     * {@link #CACHE_DIRECTORY}
+     * {@link #CACHE_BUDGET}
+     * {@link #COLD_CACHE_DIRECTORY}
+     * {@link #COLD_CACHE_BUDGET}
+     * {@link #EXPORT_CACHE}
+     * {@link #IMPORT_CACHE}
+     * {@link #PREFILL}
+     * {@link #PREFILL_THREADS}
+     * {@link #PREFILL_RATE}
+     * {@link #FRAME_WIDTH}
+     * {@link #FRAME_HEIGHT}
+     * {@link #QUALITY}
+     * {@link #PROGRESSIVE}
+     * {@link #OPTIMIZE_HUFFMAN}
+     * {@link #CHROMA_SUBSAMPLING}
+     * {@link #STRIP_METADATA}
+     * {@link #RESAMPLE}
      */
     public enum Option {
 	/**
@@ -66,7 +87,81 @@ public class Options {
 	/**
 	 * Override default minimum photo width
 	 */
-	MINIMUM_WIDTH;
+	MINIMUM_WIDTH,
+	/**
+	 * Disk budget in megabytes for uncompressed cached base images
+	 */
+	RAW_CACHE,
+	/**
+	 * Directory holding the cache, which may be shared with other instances
+	 */
+	CACHE_DIRECTORY,
+	/**
+	 * Disk budget in megabytes for the cache directory
+	 */
+	CACHE_BUDGET,
+	/**
+	 * Directory holding the large, slow tier of the cache
+	 */
+	COLD_CACHE_DIRECTORY,
+	/**
+	 * Disk budget in megabytes for the cold cache directory
+	 */
+	COLD_CACHE_BUDGET,
+	/**
+	 * Archive file to export the cache to
+	 */
+	EXPORT_CACHE,
+	/**
+	 * Archive file to import into the cache
+	 */
+	IMPORT_CACHE,
+	/**
+	 * Only put missing images into the cache, don't write the output
+	 * directory
+	 */
+	PREFILL,
+	/**
+	 * Number of threads used to prefill the cache
+	 */
+	PREFILL_THREADS,
+	/**
+	 * Maximum megabytes per second read and written when prefilling the
+	 * cache
+	 */
+	PREFILL_RATE,
+	/**
+	 * Width of the photo frame display, to fit images to
+	 */
+	FRAME_WIDTH,
+	/**
+	 * Height of the photo frame display, to fit images to
+	 */
+	FRAME_HEIGHT,
+	/**
+	 * JPEG quality of the output images, as a percentage
+	 */
+	QUALITY,
+	/**
+	 * Write progressive JPEG output images
+	 */
+	PROGRESSIVE,
+	/**
+	 * Optimize the Huffman tables of the output images
+	 */
+	OPTIMIZE_HUFFMAN,
+	/**
+	 * Chroma subsampling of the output images, 420, 422 or 444
+	 */
+	CHROMA_SUBSAMPLING,
+	/**
+	 * Leave EXIF and other metadata out of the output images
+	 */
+	STRIP_METADATA,
+	/**
+	 * Filter used to resize images, area, bilinear or lanczos
+	 */
+	RESAMPLE;
     };
 
     /**
@@ -80,6 +175,7 @@ public class Options {
         private final static Map<Option, String> descriptions = new HashMap<>();
         private final static Map<Option, Integer> defaultValue = new HashMap<>();
         private final static Map<Option, Boolean> defaultPresent = new HashMap<>();
+        private final static Map<Option, String> defaultString = new HashMap<>();
 
         /**
          * This is for options that carry a numeric value
@@ -116,6 +212,24 @@ public class Options {
             defaultPresent.put(option, defaultPres);
         }
 
+        /**
+         * This is for options that carry a text value, such as a path
+         *
+         * @param optionString command line option
+         * @param option option enumeration
+         * @param description text description of option
+         * @param defaultVal default value
+         */
+        private static void put(String optionString,
+                Option option,
+                String description,
+                String defaultVal) {
+            descriptions.put(option, description);
+            options.put(optionString.toLowerCase(), option);
+            defaultPresent.put(option, true);
+            defaultString.put(option, defaultVal);
+        }
+
         /**
          * Get the text description of the option
          *
@@ -166,6 +280,40 @@ public class Options {
             return 0;
         }
 
+        /**
+         * Check if the option carries a text value
+         *
+         * @param option option to check
+         * @return true if the option value is text
+         */
+        private boolean hasStringValue(Option option) {
+            return defaultString.containsKey(option);
+        }
+
+        /**
+         * Check if the option carries a numeric value
+         *
+         * @param option option to check
+         * @return true if the option value is a number
+         */
+        private boolean hasNumericValue(Option option) {
+            return defaultValue.containsKey(option);
+        }
+
+        /**
+         * Get the default text value for the specified option
+         *
+         * @param option the option to get the value for
+         * @return default value for option
+         */
+        private String getDefaultString(Option option) {
+            if (defaultString.containsKey(option)) {
+                return defaultString.get(option);
+            }
+            System.err.println("getDefaultString - unknown option " + option);
+            return "";
+        }
+
         static private final String DESCR_VERBOSE = "Describe what is happening";
         static private final String DESCR_CHECK = "Only run main processing if number of input files changed";
         static private final String DESCR_SHOW_FILENAME = "Annotate images with input filename";
@@ -176,18 +324,54 @@ public class Options {
         static private final String DESCR_CACHE = "Use cache";
         static private final String DESCR_MIN_WIDTH = "Specify minimum width for image";
         static private final String DESCR_REMOVE_BORDER = "Remove any white border around images";
+        static private final String DESCR_RAW_CACHE = "Megabytes of disk for uncompressed cached images";
+        static private final String DESCR_CACHE_DIRECTORY = "Cache directory, can be shared by several runs";
+        static private final String DESCR_CACHE_BUDGET = "Megabytes of disk for cache directory";
+        static private final String DESCR_COLD_CACHE_DIRECTORY = "Directory for cold cache tier";
+        static private final String DESCR_COLD_CACHE_BUDGET = "Megabytes of disk for cold cache tier";
+        static private final String DESCR_EXPORT_CACHE = "Export cache to archive file";
+        static private final String DESCR_IMPORT_CACHE = "Import cache from archive file";
+        static private final String DESCR_PREFILL = "Fill the cache in the background, no output";
+        static private final String DESCR_PREFILL_THREADS = "Number of threads for --prefill";
+        static private final String DESCR_PREFILL_RATE = "Megabytes per second for --prefill, 0 for no limit";
+        static private final String DESCR_FRAME_WIDTH = "Shrink images to fit a display this many pixels wide";
+        static private final String DESCR_FRAME_HEIGHT = "Shrink images to fit a display this many pixels high";
+        static private final String DESCR_QUALITY = "JPEG quality of output images, 1 to 100";
+        static private final String DESCR_PROGRESSIVE = "Write progressive JPEG output images";
+        static private final String DESCR_OPTIMIZE_HUFFMAN = "Optimize Huffman tables of output images";
+        static private final String DESCR_CHROMA = "Chroma subsampling of output images, 420, 422 or 444";
+        static private final String DESCR_STRIP_METADATA = "Leave metadata out of output images";
+        static private final String DESCR_RESAMPLE = "Filter to resize images, area, bilinear or lanczos";
 
         static {
             // These are the command line options that are recognised
             put("--cache", Option.CACHE, DESCR_CACHE, false);
+            put("--cacheBudget", Option.CACHE_BUDGET, DESCR_CACHE_BUDGET, 0);
+            put("--cacheDirectory", Option.CACHE_DIRECTORY, DESCR_CACHE_DIRECTORY, "framcache");
             put("--check", Option.CHECK, DESCR_CHECK, false);
+            put("--chroma", Option.CHROMA_SUBSAMPLING, DESCR_CHROMA, JpegEncoder.CHROMA_420);
+            put("--coldCacheBudget", Option.COLD_CACHE_BUDGET, DESCR_COLD_CACHE_BUDGET, 0);
+            put("--coldCacheDirectory", Option.COLD_CACHE_DIRECTORY, DESCR_COLD_CACHE_DIRECTORY, "");
             put("--date", Option.SHOW_DATE, DESCR_SHOW_DATE, false);
+            put("--exportCache", Option.EXPORT_CACHE, DESCR_EXPORT_CACHE, "");
+            put("--frameHeight", Option.FRAME_HEIGHT, DESCR_FRAME_HEIGHT, 0);
+            put("--frameWidth", Option.FRAME_WIDTH, DESCR_FRAME_WIDTH, 0);
+            put("--importCache", Option.IMPORT_CACHE, DESCR_IMPORT_CACHE, "");
             put("--minimumWidth", Option.MINIMUM_WIDTH, DESCR_MIN_WIDTH, 5656);
             put("--noDirectory", Option.NO_DIRECTORY_NAME, DESCR_NO_DIRECTORY_NAME, true);
             put("--noRotate", Option.NO_ROTATE_IMAGES, DESCR_NO_ROTATE, false);
+            put("--optimizeHuffman", Option.OPTIMIZE_HUFFMAN, DESCR_OPTIMIZE_HUFFMAN, false);
+            put("--prefill", Option.PREFILL, DESCR_PREFILL, false);
+            put("--prefillRate", Option.PREFILL_RATE, DESCR_PREFILL_RATE, 20);
+            put("--prefillThreads", Option.PREFILL_THREADS, DESCR_PREFILL_THREADS, 1);
+            put("--progressive", Option.PROGRESSIVE, DESCR_PROGRESSIVE, false);
+            put("--quality", Option.QUALITY, DESCR_QUALITY, 75);
+            put("--rawCache", Option.RAW_CACHE, DESCR_RAW_CACHE, 0);
             put("--removeBorder", Option.REMOVE_BORDER, DESCR_REMOVE_BORDER, false);
+            put("--resample", Option.RESAMPLE, DESCR_RESAMPLE, ResamplingFilter.BILINEAR);
             put("--showFilename", Option.SHOW_FILENAME, DESCR_SHOW_FILENAME, false);
             put("--showIndex", Option.SHOW_INDEX, DESCR_SHOW_INDEX, false);
+            put("--stripMetadata", Option.STRIP_METADATA, DESCR_STRIP_METADATA, false);
             put("--verbose", Option.VERBOSE, DESCR_VERBOSE, false);
         }
 
@@ -198,6 +382,7 @@ public class Options {
     // These are the settings of the options
     private final Map<Option, Boolean> optionSetting = new HashMap<>();
     private final Map<Option, Integer> optionValues = new HashMap<>();
+    private final Map<Option, String> optionStrings = new HashMap<>();
 
     /**
      * Constructor
@@ -228,9 +413,16 @@ public class Options {
 
         boolean optionPresent = false;
         Integer numericValue = null;
+        String stringValue = null;
         if (keyword.startsWith("--")) {
+            Option option = KNOWN_OPTIONS.translateOptionString(keyword);
             // Contains a value, which can be the actual value or a T/F
-            if (arg.contains("=")) {
+            if (option != null && KNOWN_OPTIONS.hasStringValue(option)
+                    && arg.contains("=")) {
+                // Text value, which may itself contain "="
+                stringValue = arg.substring(arg.indexOf('=') + 1);
+                optionPresent = true;
+            } else if (arg.contains("=")) {
                 String value = arg.replaceAll("^.*=", "");
                 if (value.equalsIgnoreCase("T")) {
                     optionPresent = true;
@@ -248,13 +440,15 @@ public class Options {
                 optionPresent = true;
             }
 
-            Option option = KNOWN_OPTIONS.translateOptionString(keyword);
             if (option != null) {
                 System.out.print("   " + KNOWN_OPTIONS.getDescription(option));
                 optionSetting.put(option, optionPresent);
                 if (numericValue != null) {
                     optionValues.put(option, numericValue);
                 }
+                if (stringValue != null) {
+                    optionStrings.put(option, stringValue);
+                }
                 found = true;
             } else {
                 System.out.print("    Unrecognised option " + arg);
@@ -310,6 +504,49 @@ public class Options {
         return optionValues.get(option);
     }
     
+    /**
+     * Get the text value of an option
+     *
+     * @param option option to get value for
+     * @return option value
+     */
+    String getString(Option option) {
+        if (!optionStrings.containsKey(option)) {
+            // Option value not present, so return the default value
+            return KNOWN_OPTIONS.getDefaultString(option);
+        }
+        return optionStrings.get(option);
+    }
+
+    /**
+     * Describe the settings of the specified options in a canonical form, so
+     * that the same settings always give the same description however they
+     * were given on the command line
+     *
+     * @param options options to describe
+     * @return description of the settings
+     */
+    String fingerprint(Option... options) {
+        final SortedMap<String, String> settings = new TreeMap<>();
+        for (var option : options) {
+            String value;
+            if (KNOWN_OPTIONS.hasNumericValue(option)) {
+                value = Integer.toString(getValue(option));
+            } else if (KNOWN_OPTIONS.hasStringValue(option)) {
+                value = getString(option);
+            } else {
+                value = Boolean.toString(isSet(option));
+            }
+            settings.put(option.name(), value);
+        }
+        final var fingerprint = new StringBuilder();
+        for (var setting : settings.entrySet()) {
+            fingerprint.append(setting.getKey()).append('=')
+                    .append(setting.getValue()).append(';');
+        }
+        return fingerprint.toString();
+    }
+
     /**
      * Check internal consistency of options
      * 
@@ -317,11 +554,32 @@ public class Options {
      */
     boolean checkOptionsConsistent() {
         if (isSet(Option.CACHE) && isSet(Option.SHOW_INDEX)) {
-            // Show index disables the cache because the images generated have
-            // to contain the index number for this particular run, and these
-            // will be different in other runs since they are randomly generated
-             optionSetting.put(Option.CACHE, false);
-            System.out.println("Clearing --cache because --showIndex is present");
+            // The images generated have to contain the index number for this
+            // particular run, and these will be different in other runs since
+            // they are randomly generated.  So only the base images, before
+            // they are annotated, can be taken from the cache.
+            System.out.println("--showIndex present so only base images are cached");
+        }
+        if (isSet(Option.PREFILL) && !isSet(Option.CACHE)) {
+            // There is nothing else for it to do without the cache
+            System.out.println("--prefill present so --cache is set");
+            optionSetting.put(Option.CACHE, true);
+        }
+        if (getValue(Option.FRAME_WIDTH) > 0 || getValue(Option.FRAME_HEIGHT) > 0) {
+            // Images are fitted to the frame instead of being enlarged
+            System.out.println("--frameWidth or --frameHeight present so --minimumWidth is ignored");
+        }
+        if (getValue(Option.QUALITY) < 1 || getValue(Option.QUALITY) > 100) {
+            System.out.println("--quality must be from 1 to 100");
+            return false;
+        }
+        if (!JpegEncoder.isValidChroma(getString(Option.CHROMA_SUBSAMPLING))) {
+            System.out.println("--chroma must be 420, 422 or 444");
+            return false;
+        }
+        if (!ResamplingFilter.isValid(getString(Option.RESAMPLE))) {
+            System.out.println("--resample must be area, bilinear or lanczos");
+            return false;
         }
         return true;
     }
@@ -1,69 +1,105 @@
 package fram.border;
 
-import java.awt.Color;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import java.util.Arrays;
 
 /**
  * This class checks if a linescan - vertical or horizontal - could be a border
  * It must meet the following criteria:
  *
- * 1. All of the pixels must be more or less white
+ * 1. Nearly all of the pixels must be more or less white, allowing for a
+ * little dust on a scan
+ *
+ * 2. The median colour must be more or less white
+ *
+ * The medians come from a histogram of each colour component, so the
+ * samples themselves are not kept. A checker is reset and used again for
+ * each linescan.
  *
  * @author Jason Leake
  */
 class BorderChecker {
 
-    DescriptiveStatistics[] colorStats = new DescriptiveStatistics[3];
+    // Components above this are whiteish
+    private static final int WHITE_LEVEL = 200;
+    // One pixel in this many may be dust rather than white
+    private static final int DUST_FRACTION = 32;
+
+    private final int[][] histograms = new int[3][256];
+    private int count;
+    private int notWhite;
+    private int dustLimit;
     // Set false if this is definitely not part of a border
     boolean couldBeBorder = true;
 
-    /**
-     * constructor
-     */
-    public BorderChecker() {
-        colorStats[REDI] = new DescriptiveStatistics();
-        colorStats[BLUEI] = new DescriptiveStatistics();
-        colorStats[GREENI] = new DescriptiveStatistics();
-    }
-
     private static final int REDI = 0;
     private static final int BLUEI = 1;
     private static final int GREENI = 2;
 
     /**
-     * Add the specified rgb values to the descriptive statistics. If they are
-     * not close to white then mark the AverageColour object as not a border and
-     * give up subsequent adding to the average, as a speed optimisation.
+     * Start checking a new linescan
+     *
+     * @param length number of pixels in the linescan
+     */
+    void reset(int length) {
+        for (var histogram : histograms) {
+            Arrays.fill(histogram, 0);
+        }
+        count = 0;
+        notWhite = 0;
+        dustLimit = length / DUST_FRACTION;
+        couldBeBorder = true;
+    }
+
+    /**
+     * Add the specified colour values to the histograms. If too many of them
+     * are not close to white then mark the linescan as not a border, and stop
+     * adding to the histograms as a speed optimisation.
      *
-     * @param rgb red/green/blue values
+     * @param red red value, 0 to 255
+     * @param green green value, 0 to 255
+     * @param blue blue value, 0 to 255
      */
-    void add(int rgb) {
-        if (!couldBeBorder) {
-            Color colour = new Color(rgb);
-            colorStats[REDI].addValue(colour.getRed());
-            colorStats[BLUEI].addValue(colour.getBlue());
-            colorStats[GREENI].addValue(colour.getGreen());
-            if (!whiteish(colour)) {
+    void add(int red, int green, int blue) {
+        if (couldBeBorder) {
+            histograms[REDI][red]++;
+            histograms[BLUEI][blue]++;
+            histograms[GREENI][green]++;
+            count++;
+            if (!whiteish(red, green, blue) && ++notWhite > dustLimit) {
                 couldBeBorder = false;
             }
         }
     }
 
     /**
-     * Check if the specified pixel is sufficiently white to potentially be part
-     * of a border
+     * Check if the specified colour is sufficiently white to potentially be
+     * part of a border
      *
-     * @param colour colour of pixel
+     * @param red red value
+     * @param green green value
+     * @param blue blue value
      * @return true if it could be part of a border
      */
-    private boolean whiteish(Color colour) {
-        return (colour.getRed() > 200) && (colour.getBlue() > 200) && (colour.getGreen() > 200);
+    private static boolean whiteish(int red, int green, int blue) {
+        return red > WHITE_LEVEL && green > WHITE_LEVEL && blue > WHITE_LEVEL;
     }
 
-    private Color getMedian() {
-        return new Color((int) colorStats[REDI].getPercentile(0.5),
-                (int) colorStats[GREENI].getPercentile(0.5),
-                (int) colorStats[BLUEI].getPercentile(0.5));
+    /**
+     * Get the median of one colour component
+     *
+     * @param component index of the component
+     * @return median value
+     */
+    private int getMedian(int component) {
+        final var histogram = histograms[component];
+        var remaining = count / 2;
+        for (var value = 0; value < histogram.length; value++) {
+            remaining -= histogram[value];
+            if (remaining < 0) {
+                return value;
+            }
+        }
+        return histogram.length - 1;
     }
 
     /**
@@ -76,12 +112,11 @@ class BorderChecker {
     boolean isBorder() {
         // If there is some reason it is not a border then immediately return
         // false
-        if (!couldBeBorder) {
+        if (!couldBeBorder || count == 0) {
             return false;
         }
         // Otherwise check the median colour to see if it is reasonably white
-        Color median = getMedian();
-        return whiteish(median);
+        return whiteish(getMedian(REDI), getMedian(GREENI), getMedian(BLUEI));
     }
 
     /**
@@ -1,20 +1,57 @@
 package fram.border;
 
+import fram.rotation.Orientation;
+import fram.rotation.OrientationKernel;
+import fram.rotation.TransformPlan;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
 
 /**
  * This class is responsible for removing white borders around images.
  *
+ * Linescans are checked from each edge inwards until one is found which is
+ * not part of the border. This is done first on a copy of the image reduced
+ * by averaging blocks of pixels, and then the edges found are refined at full
+ * resolution, starting a block outside each of them. The pixels are read
+ * straight from the raster bytes.
+ *
  * @author Jason Leake
  */
 public class BorderProcessor {
 
+    // The reduced copy is about this size along its longer side
+    private static final int REDUCED_SIZE = 512;
+
     private final BufferedImage theImage;
+    private final Rectangle crop;
+
+    /**
+     * The pixels of an image, one or three bytes each
+     */
+    private static final class Pixels {
 
-    private ArrayList<BorderChecker> rowColours = new ArrayList<>();
-    private ArrayList<BorderChecker> columnColours = new ArrayList<>();
+        final byte[] data;
+        final int width;
+        final int height;
+        final int channels;
+
+        /**
+         * Constructor
+         *
+         * @param data pixel bytes, in BGR order if there are three channels
+         * @param width width in pixels
+         * @param height height in pixels
+         * @param channels bytes per pixel
+         */
+        Pixels(byte[] data, int width, int height, int channels) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+    }
 
     /**
      * Constructor
@@ -23,90 +60,295 @@ public class BorderProcessor {
      */
     public BorderProcessor(BufferedImage image) {
         theImage = image;
+        final var pixels = getPixels(image);
+        final var factor = Math.max(1,
+                Math.max(pixels.width, pixels.height) / REDUCED_SIZE);
+        final var checker = new BorderChecker();
 
-        // Test each vertical linescan to see if it could be a border
-        for (int x = image.getMinX(); x < image.getMinX() + image.getWidth(); x++) {
-            BorderChecker borderchecker = new BorderChecker();
-            for (int y = image.getMinY(); y < image.getMinY() + image.getHeight(); y++) {
-                borderchecker.add(image.getRGB(x, y));
-                if (borderchecker.definitelyNotBorder()) {
-                    break;
-                }
+        // Find the edges roughly, in blocks of factor pixels. The pixels left
+        // over at the right and bottom are checked at full resolution.
+        var top = 0;
+        var left = 0;
+        var bottom = 0;
+        var right = 0;
+        if (factor > 1) {
+            final var reduced = reduce(pixels, factor);
+            final var edges = findEdges(reduced, checker, 0, 0,
+                    reduced.height - 1, reduced.width - 1);
+            top = edges.y * factor;
+            left = edges.x * factor;
+            bottom = (edges.y + edges.height) * factor - 1;
+            right = (edges.x + edges.width) * factor - 1;
+            if (edges.isEmpty()) {
+                top = left = 0;
+                bottom = pixels.height - 1;
+                right = pixels.width - 1;
             }
-            columnColours.add(borderchecker);
+            // Start a block further out, as the edge may be anywhere within
+            // the block which straddles it
+            top = Math.max(0, top - factor);
+            left = Math.max(0, left - factor);
+            bottom = bottom + factor >= reduced.height * factor
+                    ? pixels.height - 1 : bottom + factor;
+            right = right + factor >= reduced.width * factor
+                    ? pixels.width - 1 : right + factor;
+        } else {
+            bottom = pixels.height - 1;
+            right = pixels.width - 1;
         }
 
-        // Test each horizontal linescan to see if it could be a border
-        for (int y = image.getMinY(); y < image.getMinY() + image.getHeight(); y++) {
-            BorderChecker borderchecker = new BorderChecker();
-            for (int x = image.getMinX(); x < image.getMinX() + image.getWidth(); x++) {
-                borderchecker.add(image.getRGB(x, y));
-                if (borderchecker.definitelyNotBorder()) {
-                    break;
-                }
-            }
-            rowColours.add(borderchecker);
+        // The linescans outside where the search starts are taken to be
+        // border already
+        crop = findEdges(pixels, checker, top, left, bottom, right);
+    }
+
+    /**
+     * Check cheaply whether an image has about the same border as another,
+     * without scanning it all. On each side, the linescan the tolerance
+     * outside the crop must be border, unless it is off the image, and the
+     * linescan the tolerance inside the crop must not be. The true edge is
+     * then within the tolerance of the edge of the crop.
+     *
+     * @param image the image
+     * @param cropRectangle area inside the border of the other image
+     * @param tolerance how far the edges may be out, in pixels
+     * @return true if the crop fits the image, false if it doesn't or the
+     * image is not packed TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     */
+    public static boolean matches(BufferedImage image, Rectangle cropRectangle, int tolerance) {
+        if (!OrientationKernel.isSupported(image)
+                || cropRectangle.width <= tolerance * 2 || cropRectangle.height <= tolerance * 2
+                || !new Rectangle(0, 0, image.getWidth(), image.getHeight())
+                        .contains(cropRectangle)) {
+            return false;
         }
+        final var pixels = getPixels(image);
+        final var checker = new BorderChecker();
+        final var top = cropRectangle.y;
+        final var bottom = cropRectangle.y + cropRectangle.height - 1;
+        final var left = cropRectangle.x;
+        final var right = cropRectangle.x + cropRectangle.width - 1;
+        return (top - tolerance - 1 < 0 || isBorderRow(pixels, checker, top - tolerance - 1))
+                && (bottom + tolerance + 1 >= pixels.height
+                || isBorderRow(pixels, checker, bottom + tolerance + 1))
+                && (left - tolerance - 1 < 0
+                || isBorderColumn(pixels, checker, left - tolerance - 1, top, bottom))
+                && (right + tolerance + 1 >= pixels.width
+                || isBorderColumn(pixels, checker, right + tolerance + 1, top, bottom))
+                && !isBorderRow(pixels, checker, top + tolerance)
+                && !isBorderRow(pixels, checker, bottom - tolerance)
+                && !isBorderColumn(pixels, checker, left + tolerance, top, bottom)
+                && !isBorderColumn(pixels, checker, right - tolerance, top, bottom);
+    }
 
+    /**
+     * Check linescans from each edge inwards, starting at the given positions,
+     * until one is found which is not border. Rows are checked first, and
+     * then columns between the rows which are not border.
+     *
+     * @param pixels the pixels
+     * @param checker checker to use for each linescan
+     * @param top first row to check from the top
+     * @param left first column to check from the left
+     * @param bottom first row to check from the bottom
+     * @param right first column to check from the right
+     * @return area inside the border, empty if it is all border
+     */
+    private static Rectangle findEdges(Pixels pixels, BorderChecker checker,
+            int top, int left, int bottom, int right) {
+        while (top <= bottom && isBorderRow(pixels, checker, top)) {
+            top++;
+        }
+        while (bottom >= top && isBorderRow(pixels, checker, bottom)) {
+            bottom--;
+        }
+        while (left <= right && isBorderColumn(pixels, checker, left, top, bottom)) {
+            left++;
+        }
+        while (right >= left && isBorderColumn(pixels, checker, right, top, bottom)) {
+            right--;
+        }
+        if (top > bottom || left > right) {
+            return new Rectangle();
+        }
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
     }
 
     /**
-     * Check if the image has a border around it
+     * Check if a row could be part of a border
      *
-     * @return true if the image has a border round it
+     * @param pixels the pixels
+     * @param checker checker to use
+     * @param y the row
+     * @return true if it could be part of a border
      */
-    public boolean hasBorder() {
-        // Check the row
-        for (BorderChecker borderchecker : rowColours) {
-            if (borderchecker.isBorder()) {
-                System.out.println("Has a border");
-                return true;
+    private static boolean isBorderRow(Pixels pixels, BorderChecker checker, int y) {
+        final var step = pixels.channels;
+        final var start = y * pixels.width * step;
+        return isBorder(pixels, checker, start, step, pixels.width);
+    }
+
+    /**
+     * Check if part of a column could be part of a border
+     *
+     * @param pixels the pixels
+     * @param checker checker to use
+     * @param x the column
+     * @param top first row
+     * @param bottom last row
+     * @return true if it could be part of a border
+     */
+    private static boolean isBorderColumn(Pixels pixels, BorderChecker checker, int x,
+            int top, int bottom) {
+        final var step = pixels.width * pixels.channels;
+        final var start = top * step + x * pixels.channels;
+        return isBorder(pixels, checker, start, step, bottom - top + 1);
+    }
+
+    /**
+     * Check if a linescan could be part of a border
+     *
+     * @param pixels the pixels
+     * @param checker checker to use
+     * @param start offset of the first pixel
+     * @param step offset from one pixel to the next
+     * @param length number of pixels
+     * @return true if it could be part of a border
+     */
+    private static boolean isBorder(Pixels pixels, BorderChecker checker, int start,
+            int step, int length) {
+        final var data = pixels.data;
+        checker.reset(length);
+        var offset = start;
+        for (var index = 0; index < length; index++, offset += step) {
+            if (pixels.channels == 1) {
+                final var grey = data[offset] & 0xff;
+                checker.add(grey, grey, grey);
             } else {
-                break;
+                checker.add(data[offset + 2] & 0xff, data[offset + 1] & 0xff,
+                        data[offset] & 0xff);
+            }
+            if (checker.definitelyNotBorder()) {
+                return false;
             }
         }
+        return checker.isBorder();
+    }
 
-        Collections.reverse(rowColours);
-        for (BorderChecker borderchecker : rowColours) {
-            if (borderchecker.isBorder()) {
-                System.out.println("Has a border");
-                return true;
-            } else {
-                break;
+    /**
+     * Get the pixel bytes of an image. Images which are not packed
+     * TYPE_3BYTE_BGR or TYPE_BYTE_GRAY are copied into BGR bytes.
+     *
+     * @param image the image
+     * @return the pixels
+     */
+    private static Pixels getPixels(BufferedImage image) {
+        final var width = image.getWidth();
+        final var height = image.getHeight();
+        if (OrientationKernel.isSupported(image)) {
+            return new Pixels(((DataBufferByte) image.getRaster().getDataBuffer()).getData(),
+                    width, height, image.getRaster().getNumBands());
+        }
+        final var data = new byte[width * height * 3];
+        final var row = new int[width];
+        var offset = 0;
+        for (var y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (var rgb : row) {
+                data[offset++] = (byte) rgb;
+                data[offset++] = (byte) (rgb >> 8);
+                data[offset++] = (byte) (rgb >> 16);
             }
         }
+        return new Pixels(data, width, height, 3);
+    }
 
-        // Check the column
-        for (BorderChecker bordercheker : columnColours) {
-            if (bordercheker.isBorder()) {
-                System.out.println("Has a border");
-                return true;
-            } else {
-                break;
+    /**
+     * Reduce the pixels by averaging blocks of them. Any pixels left over at
+     * the right and bottom are left out.
+     *
+     * @param pixels the pixels
+     * @param factor size of the blocks
+     * @return the reduced pixels
+     */
+    private static Pixels reduce(Pixels pixels, int factor) {
+        final var width = pixels.width / factor;
+        final var height = pixels.height / factor;
+        final var channels = pixels.channels;
+        final var data = new byte[width * height * channels];
+        final var sums = new int[width * channels];
+        final var area = factor * factor;
+        var target = 0;
+        for (var y = 0; y < height; y++) {
+            Arrays.fill(sums, 0);
+            for (var row = y * factor; row < (y + 1) * factor; row++) {
+                var offset = row * pixels.width * channels;
+                for (var x = 0; x < width; x++) {
+                    for (var column = 0; column < factor; column++) {
+                        for (var channel = 0; channel < channels; channel++) {
+                            sums[x * channels + channel] += pixels.data[offset++] & 0xff;
+                        }
+                    }
+                }
             }
-        }
-        Collections.reverse(columnColours);
-        for (BorderChecker borderchecker : columnColours) {
-            if (borderchecker.isBorder()) {
-                System.out.println("Has a border");
-                return true;
-            } else {
-                break;
+            for (var sum : sums) {
+                data[target++] = (byte) ((sum + area / 2) / area);
             }
         }
+        return new Pixels(data, width, height, channels);
+    }
 
-        //System.out.println("No border");
+    /**
+     * Check if the image has a border around it
+     *
+     * @return true if the image has a border round it
+     */
+    public boolean hasBorder() {
+        if (isCropped()) {
+            System.out.println("Has a border");
+            return true;
+        }
         return false;
     }
 
     /**
-     * Remove the border around the image.  NOT IMPLEMENTED YET, SO RETURNS IMAGE
-     * UNMODITIFIED.
+     * Check if there is any image inside the border, and the border is
+     * there at all
+     *
+     * @return true if the image should be cropped
+     */
+    private boolean isCropped() {
+        return !crop.isEmpty()
+                && (crop.width != theImage.getWidth() || crop.height != theImage.getHeight());
+    }
+
+    /**
+     * Get the area of the image inside the border. If there is no border,
+     * or the image is all border, this is the whole image.
      *
-     * @return image
+     * @return area to keep
+     */
+    public Rectangle getCropRectangle() {
+        if (!isCropped()) {
+            return new Rectangle(theImage.getMinX(), theImage.getMinY(),
+                    theImage.getWidth(), theImage.getHeight());
+        }
+        return new Rectangle(crop);
+    }
+
+    /**
+     * Remove the border around the image
+     *
+     * @return the image inside the border, or the image itself if it has no
+     * border
      */
     public BufferedImage removeBorder() {
-        return theImage;
+        if (!isCropped()) {
+            return theImage;
+        }
+        final var plan = new TransformPlan(theImage, Orientation.NONE);
+        plan.setCrop(crop);
+        return plan.apply(theImage);
     }
 
 }
@@ -0,0 +1,158 @@
+package fram.border;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares the border crop between the images in a directory. Scanned albums
+ * usually come from one session on a flatbed scanner, so every image has the
+ * same white margins. The borders of the first few images in a directory
+ * are found with a {@link BorderProcessor} in full, and if they all agree
+ * within a tolerance, the other images of the same size in the directory
+ * are given the shared crop after checking a few linescans at its edges
+ * with {@link BorderProcessor#matches}. If the check fails the image is
+ * scanned in full as usual.
+ *
+ * It can be used by several threads at once.
+ *
+ * @author Jason Leake
+ */
+public class CropModel {
+
+    // Number of images scanned in full before the crop is shared
+    private static final int SAMPLE_SIZE = 3;
+    // The edges may differ by this fraction of the image size, or by
+    // MINIMUM_TOLERANCE pixels if that is more
+    private static final int TOLERANCE_FRACTION = 100;
+    private static final int MINIMUM_TOLERANCE = 2;
+
+    private final Map<Key, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * Key of the images of one size in one directory
+     */
+    private static final class Key {
+
+        private final Path directory;
+        private final int width;
+        private final int height;
+
+        /**
+         * Constructor
+         *
+         * @param directory the directory
+         * @param width image width
+         * @param height image height
+         */
+        Key(Path directory, int width, int height) {
+            this.directory = directory;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final var key = (Key) other;
+            return width == key.width && height == key.height
+                    && Objects.equals(directory, key.directory);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(directory, width, height);
+        }
+    }
+
+    /**
+     * The crops found for the images of one size in one directory
+     */
+    private static final class Batch {
+
+        private final List<Rectangle> samples = new ArrayList<>();
+        // Set once the samples agree
+        private Rectangle shared;
+        // Set if the samples disagree, so every image is scanned in full
+        private boolean inconsistent;
+
+        /**
+         * Add the crop of an image scanned in full, and share the crop once
+         * there are enough samples which agree
+         *
+         * @param crop the crop
+         * @param tolerance how far the edges may differ
+         */
+        synchronized void add(Rectangle crop, int tolerance) {
+            if (shared != null || inconsistent || samples.size() >= SAMPLE_SIZE) {
+                return;
+            }
+            samples.add(crop);
+            if (samples.size() < SAMPLE_SIZE) {
+                return;
+            }
+            var common = samples.get(0);
+            for (var sample : samples) {
+                if (!agree(samples.get(0), sample, tolerance)) {
+                    inconsistent = true;
+                    return;
+                }
+                // Keep only what is inside all of the borders
+                common = common.intersection(sample);
+            }
+            shared = common;
+        }
+
+        /**
+         * Get the shared crop
+         *
+         * @return the crop, or null if there isn't one yet
+         */
+        synchronized Rectangle getShared() {
+            return shared;
+        }
+    }
+
+    /**
+     * Get the area of an image inside its border
+     *
+     * @param directory directory containing the image file
+     * @param image the image
+     * @return area to keep, the whole image if it has no border
+     */
+    public Rectangle getCropRectangle(Path directory, BufferedImage image) {
+        final var tolerance = Math.max(MINIMUM_TOLERANCE,
+                Math.min(image.getWidth(), image.getHeight()) / TOLERANCE_FRACTION);
+        final var batch = batches.computeIfAbsent(
+                new Key(directory, image.getWidth(), image.getHeight()), key -> new Batch());
+        final var shared = batch.getShared();
+        if (shared != null && BorderProcessor.matches(image, shared, tolerance)) {
+            return new Rectangle(shared);
+        }
+        final var crop = new BorderProcessor(image).getCropRectangle();
+        batch.add(crop, tolerance);
+        return crop;
+    }
+
+    /**
+     * Check whether two crops agree
+     *
+     * @param first one crop
+     * @param second the other crop
+     * @param tolerance how far the edges may differ
+     * @return true if every edge is within the tolerance
+     */
+    private static boolean agree(Rectangle first, Rectangle second, int tolerance) {
+        return Math.abs(first.x - second.x) <= tolerance
+                && Math.abs(first.y - second.y) <= tolerance
+                && Math.abs(first.x + first.width - second.x - second.width) <= tolerance
+                && Math.abs(first.y + first.height - second.y - second.height) <= tolerance;
+    }
+}
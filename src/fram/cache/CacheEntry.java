@@ -0,0 +1,56 @@
+package fram.cache;
+
+/**
+ * An entry in a cache store, mapping a cache key to a cached image. The key
+ * is derived from the content of the input file and whatever else affects the
+ * image, not from where the input file is, so that renaming or moving photos
+ * doesn't lose their cached images.
+ *
+ * @author Jason Leake
+ */
+public final class CacheEntry {
+
+    private final String key;
+    private final String hash;
+    private final String cachedFile;
+
+    /**
+     * Constructor
+     *
+     * @param key key of the entry
+     * @param hash hash of the input file content
+     * @param cachedFile path of the cached file
+     */
+    public CacheEntry(String key, String hash, String cachedFile) {
+        this.key = key;
+        this.hash = hash;
+        this.cachedFile = cachedFile;
+    }
+
+    /**
+     * Get the key of the entry
+     *
+     * @return key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the hash of the input file content
+     *
+     * @return hash
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Get the path of the cached file
+     *
+     * @return cached file path
+     */
+    public String getCachedFile() {
+        return cachedFile;
+    }
+}
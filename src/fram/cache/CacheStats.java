@@ -0,0 +1,46 @@
+package fram.cache;
+
+/**
+ * Size of a cache store
+ *
+ * @author Jason Leake
+ */
+public final class CacheStats {
+
+    private final long entries;
+    private final long bytes;
+
+    /**
+     * Constructor
+     *
+     * @param entryCount number of entries in the store
+     * @param byteCount number of bytes the store occupies on disk
+     */
+    public CacheStats(long entryCount, long byteCount) {
+        entries = entryCount;
+        bytes = byteCount;
+    }
+
+    /**
+     * Get the number of entries
+     *
+     * @return number of entries
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the size of the store on disk
+     *
+     * @return size in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d bytes", entries, bytes);
+    }
+}
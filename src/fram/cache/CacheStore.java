@@ -0,0 +1,53 @@
+package fram.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Persistent index of cached files, keyed by cache key
+ *
+ * @author Jason Leake
+ */
+public interface CacheStore {
+
+    /**
+     * Look up the entry with the specified key
+     *
+     * @param key cache key
+     * @return the entry, or null if there isn't one
+     */
+    CacheEntry lookup(String key);
+
+    /**
+     * Add an entry, replacing any existing entry with the same key
+     *
+     * @param entry entry to add
+     */
+    void put(CacheEntry entry);
+
+    /**
+     * Delete the entry with the specified key, if there is one
+     *
+     * @param key cache key
+     */
+    void delete(String key);
+
+    /**
+     * Call the action for every entry in the store. The store must not be
+     * modified by the action.
+     *
+     * @param action action to perform
+     */
+    void forEach(Consumer<CacheEntry> action);
+
+    /**
+     * Get a description of the size of the store
+     *
+     * @return store statistics
+     */
+    CacheStats stats();
+
+    /**
+     * Release any resources held by the store
+     */
+    void close();
+}
@@ -0,0 +1,86 @@
+package fram.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lock on a single cache entry, shared between processes using the same cache
+ * directory. The process holding the lock is the one that generates the
+ * cached file, and the others wait for it and then use its result.
+ *
+ * The lock can be retained by a queued cache write, so that it is only
+ * released once both the generating code and the write have closed it.
+ *
+ * @author Jason Leake
+ */
+public class EntryLock implements AutoCloseable {
+
+    private static final String CLASSNAME = EntryLock.class.getName();
+    private FileChannel channel = null;
+    private FileLock lock = null;
+    private int holds = 1;
+
+    /**
+     * Constructor. Blocks until the lock is obtained. If the lock file cannot
+     * be created then the entry is just not locked.
+     *
+     * @param lockFile lock file for the entry, or null for no lock
+     */
+    public EntryLock(File lockFile) {
+        if (lockFile != null) {
+            try {
+                lockFile.getParentFile().mkdirs();
+                channel = FileChannel.open(lockFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                lock = channel.lock();
+            } catch (IOException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+                release();
+            } catch (OverlappingFileLockException ex) {
+                // Another thread in this process has it locked
+                release();
+            }
+        }
+    }
+
+    /**
+     * Keep the lock until {@link #close} has been called once more
+     */
+    public synchronized void retain() {
+        holds++;
+    }
+
+    /**
+     * Release the lock, if nothing else has retained it
+     */
+    @Override
+    public synchronized void close() {
+        if (--holds <= 0) {
+            release();
+        }
+    }
+
+    /**
+     * Release the lock and close the lock file
+     */
+    private void release() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        lock = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,507 @@
+package fram.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Cache store written in pure Java, so it needs no database driver. Every
+ * change is appended to a log file, and an in memory index maps each input
+ * key to the position of its latest record in the log. At start up the
+ * log is memory mapped and scanned to rebuild the index. When most of the
+ * records in the log have been superseded the live records are copied into a
+ * new log, which then replaces the old one.
+ *
+ * Each record is its payload length, the CRC32 of the payload and then the
+ * payload itself, so a record which was only partly written when the program
+ * stopped is detected and discarded.
+ *
+ * Several processes can share the log. Changes are only made while holding a
+ * lock on a separate lock file, and each process reads the records appended
+ * by the others before using its index. The log header holds a generation
+ * number, which is set from the clock when the log is created and goes up by
+ * one each time it is compacted, so a process can tell when another one has
+ * replaced the log. File keys can't be used for this, as they aren't
+ * available on Windows or some network filesystems.
+ *
+ * @author Jason Leake
+ */
+public class LogCacheStore implements CacheStore {
+
+    private static final String CLASSNAME = LogCacheStore.class.getName();
+    private static final long MAGIC = 0x4652_414d_4c4f_4732L; // "FRAMLOG2"
+    // The magic number followed by the generation
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // Size of the window onto the log that is mapped at a time
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+    // Don't bother compacting small logs
+    private static final int MINIMUM_DEAD_RECORDS = 1000;
+
+    private final Path logFile;
+    private final FileChannel lockChannel;
+    private FileChannel channel;
+    private long generation;
+    private final Map<String, Long> index = new HashMap<>();
+    private long endOfLog;
+    private long deadRecords = 0;
+
+    /**
+     * Constructor. Opens the log, creating it if it doesn't exist, and builds
+     * the index.
+     *
+     * @param file log file
+     * @throws IOException thrown if the log cannot be opened
+     */
+    public LogCacheStore(File file) throws IOException {
+        logFile = file.toPath();
+        // The log itself is replaced when it is compacted, so a separate
+        // file is locked to keep out other processes using the same cache
+        lockChannel = FileChannel.open(logFile.resolveSibling(logFile.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        final FileLock lock = lockChannel.lock();
+        try {
+            open();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Open the log and build the index. Must be called with the lock held.
+     *
+     * @throws IOException thrown if the log cannot be read or isn't a log
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        deadRecords = 0;
+        if (channel.size() < HEADER_SIZE) {
+            generation = System.currentTimeMillis();
+            channel.truncate(0);
+            channel.write(createHeader(generation), 0);
+            endOfLog = HEADER_SIZE;
+        } else {
+            generation = readGeneration(channel);
+            if (generation < 0) {
+                throw new IOException(logFile + " is not a cache log");
+            }
+            endOfLog = scan(HEADER_SIZE);
+            discardPartialRecord();
+        }
+    }
+
+    /**
+     * Pick up any changes made to the log by other processes
+     *
+     * @param locked true if the caller holds the lock
+     * @throws IOException thrown if the log cannot be read
+     */
+    private void refresh(boolean locked) throws IOException {
+        if (getCurrentGeneration() != generation) {
+            // Another process has compacted the log, so start again
+            channel.close();
+            if (locked) {
+                open();
+            } else {
+                final FileLock lock = lockChannel.lock();
+                try {
+                    open();
+                } finally {
+                    lock.release();
+                }
+            }
+        } else if (channel.size() > endOfLog) {
+            endOfLog = scan(endOfLog);
+        }
+    }
+
+    /**
+     * Remove anything after the last complete record. This is left behind if
+     * a process stopped part way through writing a record. Must be called
+     * with the lock held.
+     *
+     * @throws IOException thrown if the log cannot be truncated
+     */
+    private void discardPartialRecord() throws IOException {
+        final var size = channel.size();
+        if (endOfLog < size) {
+            System.out.println(String.format("Discarding %d bytes from end of %s",
+                    size - endOfLog, logFile));
+            channel.truncate(endOfLog);
+        }
+    }
+
+    /**
+     * Read through the log adding records to the index
+     *
+     * @param start position of the first record to read
+     * @return position of the end of the last complete record
+     * @throws IOException thrown if the log cannot be read
+     */
+    private long scan(long start) throws IOException {
+        final var size = channel.size();
+        long position = start;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            if (window == null || position + RECORD_HEADER_SIZE > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(MAP_WINDOW, size - windowStart));
+            }
+            final var offset = (int) (position - windowStart);
+            final var length = window.getInt(offset);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            if (offset + RECORD_HEADER_SIZE + length > window.limit()) {
+                if (position == windowStart) {
+                    // Record bigger than the window, so it must be corrupt
+                    break;
+                }
+                // Record crosses the end of the window
+                window = null;
+                continue;
+            }
+            final var payload = new byte[length];
+            window.duplicate().position(offset + RECORD_HEADER_SIZE).get(payload);
+            if (!checksumOk(window.getInt(offset + 4), payload)) {
+                break;
+            }
+            final var record = ByteBuffer.wrap(payload);
+            final var op = record.get();
+            final var key = getString(record);
+            if (op == PUT) {
+                if (index.put(key, position) != null) {
+                    deadRecords++;
+                }
+            } else if (index.remove(key) != null) {
+                deadRecords += 2;
+            } else {
+                deadRecords++;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    @Override
+    public synchronized CacheEntry lookup(String key) {
+        try {
+            refresh(false);
+            final var position = index.get(key);
+            if (position != null) {
+                return readEntry(position);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void put(CacheEntry entry) {
+        try {
+            final FileLock lock = lockChannel.lock();
+            try {
+                refresh(true);
+                discardPartialRecord();
+                final var position = append(PUT, entry.getKey(),
+                        entry.getHash(), entry.getCachedFile());
+                if (index.put(entry.getKey(), position) != null) {
+                    deadRecords++;
+                }
+                compactIfWorthwhile();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        try {
+            final FileLock lock = lockChannel.lock();
+            try {
+                refresh(true);
+                if (index.containsKey(key)) {
+                    discardPartialRecord();
+                    append(DELETE, key);
+                    index.remove(key);
+                    deadRecords += 2;
+                    compactIfWorthwhile();
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public synchronized void forEach(Consumer<CacheEntry> action) {
+        try {
+            refresh(false);
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        for (var position : index.values()) {
+            try {
+                action.accept(readEntry(position));
+            } catch (IOException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public synchronized CacheStats stats() {
+        return new CacheStats(index.size(), endOfLog);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                final FileLock lock = lockChannel.lock();
+                try {
+                    refresh(true);
+                    compactIfWorthwhile();
+                    channel.force(false);
+                    channel.close();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            }
+            try {
+                lockChannel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Create the header of a log
+     *
+     * @param logGeneration generation of the log
+     * @return buffer holding the header, ready to write
+     */
+    private static ByteBuffer createHeader(long logGeneration) {
+        final var header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putLong(logGeneration);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Read the generation from the header of a log
+     *
+     * @param logChannel channel open on the log
+     * @return the generation, or -1 if the log has no valid header
+     * @throws IOException thrown if the log cannot be read
+     */
+    private static long readGeneration(FileChannel logChannel) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && logChannel.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete or the log ends
+        }
+        if (header.hasRemaining() || header.getLong(0) != MAGIC) {
+            return -1;
+        }
+        return header.getLong(8);
+    }
+
+    /**
+     * Get the generation of the log currently at the log path, which changes
+     * when the log is replaced by compaction
+     *
+     * @return the generation, or -1 if there is no log or it has no header
+     * @throws IOException thrown if the log cannot be read
+     */
+    private long getCurrentGeneration() throws IOException {
+        try (var current = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            return readGeneration(current);
+        } catch (NoSuchFileException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compact the log if more than half of its records are dead
+     *
+     * @throws IOException thrown if the log cannot be rewritten
+     */
+    private void compactIfWorthwhile() throws IOException {
+        if (deadRecords >= MINIMUM_DEAD_RECORDS && deadRecords > index.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Copy the live records into a new log, and replace the old log with it.
+     * Must be called with the lock held.
+     *
+     * @throws IOException thrown if the log cannot be rewritten
+     */
+    void compact() throws IOException {
+        final var compactFile = logFile.resolveSibling(logFile.getFileName() + ".compact");
+        final Map<String, Long> newIndex = new HashMap<>();
+        try (var newChannel = FileChannel.open(compactFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            newChannel.write(createHeader(generation + 1));
+            for (var position : index.values()) {
+                final var record = readRecord(position);
+                newIndex.put(getString(record.duplicate().position(RECORD_HEADER_SIZE + 1)),
+                        newChannel.position());
+                while (record.hasRemaining()) {
+                    newChannel.write(record);
+                }
+            }
+            newChannel.force(false);
+        }
+        channel.close();
+        Files.move(compactFile, logFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        generation++;
+        endOfLog = channel.size();
+        index.clear();
+        index.putAll(newIndex);
+        System.out.println(String.format("Compacted %s, removed %d dead records",
+                logFile, deadRecords));
+        deadRecords = 0;
+    }
+
+    /**
+     * Append a record to the log
+     *
+     * @param op operation
+     * @param strings strings making up the rest of the record
+     * @return position of the record in the log
+     * @throws IOException thrown if the record cannot be written
+     */
+    private long append(byte op, String... strings) throws IOException {
+        var length = 1;
+        final var encoded = new byte[strings.length][];
+        for (var count = 0; count < strings.length; count++) {
+            encoded[count] = strings[count].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[count].length;
+        }
+        final var payload = ByteBuffer.allocate(length);
+        payload.put(op);
+        for (var bytes : encoded) {
+            payload.putInt(bytes.length).put(bytes);
+        }
+        final var crc = new CRC32();
+        crc.update(payload.array());
+
+        final var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length).putInt((int) crc.getValue()).put(payload.array());
+        record.flip();
+        final var position = endOfLog;
+        var writePosition = position;
+        while (record.hasRemaining()) {
+            writePosition += channel.write(record, writePosition);
+        }
+        endOfLog = writePosition;
+        return position;
+    }
+
+    /**
+     * Read the complete record, including its header, at the specified
+     * position
+     *
+     * @param position position in log
+     * @return buffer holding the record
+     * @throws IOException thrown if the record cannot be read
+     */
+    private ByteBuffer readRecord(long position) throws IOException {
+        final var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, position);
+        final var length = header.getInt(0);
+        final var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        readFully(record, position);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Read the entry held in the PUT record at the specified position
+     *
+     * @param position position in log
+     * @return the entry
+     * @throws IOException thrown if the record cannot be read
+     */
+    private CacheEntry readEntry(long position) throws IOException {
+        final var record = readRecord(position);
+        record.position(RECORD_HEADER_SIZE + 1);
+        return new CacheEntry(getString(record), getString(record), getString(record));
+    }
+
+    /**
+     * Fill the buffer from the log
+     *
+     * @param buffer buffer to fill
+     * @param position position in log to read from
+     * @throws IOException thrown if the end of the log is reached
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final var count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of " + logFile);
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Read a length prefixed string from the buffer
+     *
+     * @param buffer buffer to read from
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer) {
+        final var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check the CRC of a record payload
+     *
+     * @param expected CRC stored in the record
+     * @param payload record payload
+     * @return true if the CRC matches
+     */
+    private static boolean checksumOk(int expected, byte[] payload) {
+        final var crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == expected;
+    }
+}
@@ -0,0 +1,218 @@
+package fram.cache;
+
+import fram.rotation.RasterPool;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache tier holding base images as uncompressed pixel data. Reading one of
+ * these back is just a memory mapping and a copy into the image raster, so
+ * re-annotating an image does not need the JPEG to be decoded again.
+ *
+ * The files are named after the hash of the image they hold. The least
+ * recently used files are deleted when the total size of the tier exceeds its
+ * disk budget. It can be used by several threads at once.
+ *
+ * @author Jason Leake
+ */
+public class RawImageCache {
+
+    private static final String CLASSNAME = RawImageCache.class.getName();
+    private static final int MAGIC = 0x4652_4157; // "FRAW"
+    private static final int HEADER_SIZE = 16;
+    private static final String SUFFIX = ".raw";
+
+    private final File directory;
+    private final long budget;
+    private long totalSize = 0;
+
+    /**
+     * Constructor
+     *
+     * @param rawDirectory directory to keep the raw files in
+     * @param budgetBytes maximum number of bytes the files may use
+     */
+    public RawImageCache(File rawDirectory, long budgetBytes) {
+        directory = rawDirectory;
+        budget = budgetBytes;
+        directory.mkdirs();
+        for (var file : listRawFiles()) {
+            totalSize += file.length();
+        }
+        System.out.println(String.format("Raw image cache %s using %d of %d bytes",
+                directory, totalSize, budget));
+    }
+
+    /**
+     * Read the image with the specified hash
+     *
+     * @param hash hash of image
+     * @return the image, or null if it is not in the cache
+     */
+    public BufferedImage get(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        final var file = getFile(hash);
+        if (!file.exists()) {
+            return null;
+        }
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                System.out.println("Bad raw cache file " + file);
+                delete(file);
+                return null;
+            }
+            final var width = buffer.getInt();
+            final var height = buffer.getInt();
+            final var type = buffer.getInt();
+            if ((type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_BYTE_GRAY)
+                    || buffer.remaining() != (long) width * height * getBytesPerPixel(type)) {
+                System.out.println("Bad raw cache file " + file);
+                delete(file);
+                return null;
+            }
+            final var image = RasterPool.acquire(width, height, type);
+            final var data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            buffer.get(data);
+            // Keep track of when it was last used, for the eviction
+            file.setLastModified(System.currentTimeMillis());
+            return image;
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Store the image with the specified hash
+     *
+     * @param hash hash of image
+     * @param image image to store
+     */
+    public synchronized void put(String hash, BufferedImage image) {
+        if (hash == null || (image.getType() != BufferedImage.TYPE_3BYTE_BGR
+                && image.getType() != BufferedImage.TYPE_BYTE_GRAY)) {
+            return;
+        }
+        final var width = image.getWidth();
+        final var height = image.getHeight();
+        final var bytesPerPixel = getBytesPerPixel(image.getType());
+        final var size = HEADER_SIZE + (long) width * height * bytesPerPixel;
+        if (size > budget) {
+            return;
+        }
+        makeSpace(size);
+
+        // Written under a temporary name and then renamed, so that other
+        // processes sharing the cache never see a partly written file
+        final var file = getFile(hash);
+        final var tempFile = new File(file.getPath() + "." + ProcessHandle.current().pid());
+        final var header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(width).putInt(height).putInt(image.getType());
+        header.flip();
+        try (var channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(header);
+            final var raster = image.getRaster();
+            final var row = new byte[width * bytesPerPixel];
+            for (var y = 0; y < height; y++) {
+                raster.getDataElements(0, y, width, 1, row);
+                channel.write(ByteBuffer.wrap(row));
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            tempFile.delete();
+            return;
+        }
+        try {
+            // The file may already be there, if it was written by another
+            // process, so only the difference in size is added
+            final var replaced = file.length();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            totalSize += size - replaced;
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Get the number of bytes each pixel of an image takes
+     *
+     * @param type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     * @return number of bytes
+     */
+    private static int getBytesPerPixel(int type) {
+        return type == BufferedImage.TYPE_BYTE_GRAY ? 1 : 3;
+    }
+
+    /**
+     * Delete least recently used files until there is room for a new file of
+     * the specified size
+     *
+     * @param size size of the new file
+     */
+    private void makeSpace(long size) {
+        if (totalSize + size <= budget) {
+            return;
+        }
+        final var files = listRawFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (var file : files) {
+            if (totalSize + size <= budget) {
+                break;
+            }
+            delete(file);
+        }
+    }
+
+    /**
+     * Delete a raw file and account for the space it used
+     *
+     * @param file file to delete
+     */
+    private synchronized void delete(File file) {
+        final var length = file.length();
+        try {
+            if (Files.deleteIfExists(file.toPath())) {
+                totalSize -= length;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Get the file holding the image with the specified hash
+     *
+     * @param hash hash of image
+     * @return corresponding file
+     */
+    private File getFile(String hash) {
+        return new File(directory, hash + SUFFIX);
+    }
+
+    /**
+     * Get the raw files in the cache directory
+     *
+     * @return array of files
+     */
+    private File[] listRawFiles() {
+        final var files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+}
@@ -0,0 +1,147 @@
+package fram.cache;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache store held in a table of an SQLite database. This needs the
+ * sqlite-jdbc driver to be on the class path.
+ *
+ * @author Jason Leake
+ */
+public class SqliteCacheStore implements CacheStore {
+
+    private static final String CLASSNAME = SqliteCacheStore.class.getName();
+    private static final int BUSY_TIMEOUT = 60000;
+    private Connection con;
+    private final String table;
+    private final File databaseFile;
+
+    /**
+     * Constructor
+     *
+     * @param database database file
+     * @param tableName table holding the entries
+     * @throws SQLException thrown if there is no driver or the database
+     * cannot be opened
+     */
+    public SqliteCacheStore(File database, String tableName) throws SQLException {
+        databaseFile = database;
+        table = tableName;
+        con = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+        if (con == null) {
+            throw new SQLException("No connection to " + database);
+        }
+        createTable();
+    }
+
+    /**
+     * Create the database table if it does not exist
+     */
+    private void createTable() {
+        final var sql = "CREATE TABLE IF NOT EXISTS " + table + " ("
+                + "	cachekey TEXT NOT NULL PRIMARY KEY,"
+                + "	sha256 TEXT NOT NULL,"
+                + "	cachedfile TEXT NOT NULL"
+                + ");";
+        try {
+            final var statement = con.createStatement();
+            // Wait for other processes sharing the cache rather than failing
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+            statement.closeOnCompletion();
+            statement.execute(sql);
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    @Override
+    public CacheEntry lookup(String key) {
+        final var sql = "SELECT sha256, cachedFile FROM " + table + " WHERE cachekey=?";
+        try (PreparedStatement preparedStatement = con.prepareStatement(sql)) {
+            preparedStatement.setString(1, key);
+            final var resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                return new CacheEntry(key, resultSet.getString("sha256"),
+                        resultSet.getString("cachedFile"));
+            }
+        } catch (SQLException ex) {
+            System.out.println(ex.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    @Override
+    public void put(CacheEntry entry) {
+        final var sql = "INSERT OR REPLACE INTO " + table
+                + "(cachekey, sha256, cachedfile) VALUES(?,?,?)";
+        try (PreparedStatement preparedStatement = con.prepareStatement(sql)) {
+            preparedStatement.setString(1, entry.getKey());
+            preparedStatement.setString(2, entry.getHash());
+            preparedStatement.setString(3, entry.getCachedFile());
+            preparedStatement.executeUpdate();
+        } catch (SQLException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        final var sql = "DELETE FROM " + table + " WHERE cachekey = ?";
+        try (PreparedStatement preparedStatement = con.prepareStatement(sql)) {
+            preparedStatement.setString(1, key);
+            preparedStatement.execute();
+        } catch (SQLException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<CacheEntry> action) {
+        final var sql = "SELECT cachekey, sha256, cachedFile FROM " + table
+                + " ORDER BY cachedFile";
+        try (var statement = con.createStatement();
+                ResultSet resultSet = statement.executeQuery(sql)) {
+            while (resultSet.next()) {
+                action.accept(new CacheEntry(resultSet.getString(1),
+                        resultSet.getString(2), resultSet.getString(3)));
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public CacheStats stats() {
+        long count = 0;
+        final var sql = "SELECT COUNT(*) FROM " + table;
+        try (var statement = con.createStatement();
+                ResultSet resultSet = statement.executeQuery(sql)) {
+            if (resultSet.next()) {
+                count = resultSet.getLong(1);
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        return new CacheStats(count, databaseFile.length());
+    }
+
+    @Override
+    public void close() {
+        if (con != null) {
+            try {
+                con.close();
+                con = null;
+            } catch (SQLException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package fram.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages the cached image files when the cache is split into a small, fast
+ * hot tier and a large, slow cold tier. New files are written to the hot
+ * tier. When the hot tier exceeds its budget the least recently used files
+ * are moved down to the cold tier, and when a file in the cold tier is used
+ * it is moved back up. When the cold tier exceeds its budget its least
+ * recently used files are deleted.
+ *
+ * A file keeps the same path relative to its tier directory when it moves
+ * between the tiers.
+ *
+ * @author Jason Leake
+ */
+public class TierManager {
+
+    private static final String CLASSNAME = TierManager.class.getName();
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Demote files until the hot tier is down to this fraction of its budget,
+    // so that demotion doesn't happen on every new file
+    private static final double LOW_WATER_MARK = 0.9;
+
+    private final Path hotDirectory;
+    private final long hotBudget;
+    private final Path coldDirectory;
+    private final long coldBudget;
+    private long hotUsed = 0;
+    private long coldUsed = 0;
+
+    /**
+     * Constructor
+     *
+     * @param hot hot tier directory
+     * @param hotBudgetBytes maximum size of hot tier, 0 for no limit
+     * @param cold cold tier directory, or null if there is no cold tier
+     * @param coldBudgetBytes maximum size of cold tier, 0 for no limit
+     */
+    public TierManager(File hot, long hotBudgetBytes, File cold, long coldBudgetBytes) {
+        hotDirectory = hot.getAbsoluteFile().toPath();
+        hotBudget = hotBudgetBytes;
+        coldDirectory = (cold == null) ? null : cold.getAbsoluteFile().toPath();
+        coldBudget = coldBudgetBytes;
+        for (var file : listFiles(hotDirectory)) {
+            hotUsed += file.length();
+        }
+        if (coldDirectory != null) {
+            coldDirectory.toFile().mkdirs();
+            for (var file : listFiles(coldDirectory)) {
+                coldUsed += file.length();
+            }
+            System.out.println(String.format("Cold cache tier %s using %d bytes",
+                    coldDirectory, coldUsed));
+        }
+        System.out.println(String.format("Hot cache tier %s using %d bytes",
+                hotDirectory, hotUsed));
+    }
+
+    /**
+     * Get the cold tier directory
+     *
+     * @return cold tier directory, or null if there isn't one
+     */
+    public File getColdDirectory() {
+        return (coldDirectory == null) ? null : coldDirectory.toFile();
+    }
+
+    /**
+     * Note that a cached file has been used, moving it to the hot tier if it
+     * is in the cold tier
+     *
+     * @param cachedFile path of the cached file
+     * @return new path of the cached file
+     */
+    public synchronized Path use(Path cachedFile) {
+        final var absolute = cachedFile.toAbsolutePath();
+        if (coldDirectory != null && absolute.startsWith(coldDirectory)) {
+            final var target = hotDirectory.resolve(coldDirectory.relativize(absolute));
+            final var length = absolute.toFile().length();
+            if (move(absolute, target)) {
+                coldUsed -= length;
+                hotUsed += length;
+                System.out.println("Promoted " + target);
+                return target;
+            }
+        } else {
+            // Keep track of when it was last used
+            absolute.toFile().setLastModified(System.currentTimeMillis());
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Account for a new file which has been added to the hot tier
+     *
+     * @param file new file
+     */
+    public synchronized void added(File file) {
+        hotUsed += file.length();
+    }
+
+    /**
+     * Move files out of the hot tier, and delete files from the cold tier, if
+     * they are over budget
+     *
+     * @return map from the old path of every file which has been moved to its
+     * new path, which is null if the file was deleted
+     */
+    public synchronized Map<String, String> balance() {
+        final Map<String, String> moves = new HashMap<>();
+        if (hotBudget > 0 && hotUsed > hotBudget) {
+            final var target = (long) (hotBudget * LOW_WATER_MARK);
+            for (var file : leastRecentlyUsed(hotDirectory)) {
+                if (hotUsed <= target) {
+                    break;
+                }
+                final var length = file.length();
+                final var source = file.toPath();
+                if (coldDirectory == null) {
+                    if (file.delete()) {
+                        hotUsed -= length;
+                        moves.put(source.toString(), null);
+                    }
+                } else {
+                    final var destination = coldDirectory.resolve(hotDirectory.relativize(source));
+                    if (move(source, destination)) {
+                        hotUsed -= length;
+                        coldUsed += length;
+                        moves.put(source.toString(), destination.toString());
+                    }
+                }
+            }
+            System.out.println(String.format("Demoted %d files from hot cache tier", moves.size()));
+        }
+
+        if (coldDirectory != null && coldBudget > 0 && coldUsed > coldBudget) {
+            final var target = (long) (coldBudget * LOW_WATER_MARK);
+            for (var file : leastRecentlyUsed(coldDirectory)) {
+                if (coldUsed <= target) {
+                    break;
+                }
+                final var length = file.length();
+                if (file.delete()) {
+                    coldUsed -= length;
+                    moves.put(file.getPath(), null);
+                }
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Move a file between tiers. The file is copied under a temporary name
+     * and renamed, as the tiers are normally on different file systems and
+     * other processes may be using the cache.
+     *
+     * @param source file to move
+     * @param destination where to move it to
+     * @return true if successful
+     */
+    private boolean move(Path source, Path destination) {
+        final var tempFile = destination.resolveSibling(destination.getFileName() + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(destination.getParent());
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tempFile, destination, StandardCopyOption.ATOMIC_MOVE);
+            destination.toFile().setLastModified(System.currentTimeMillis());
+            Files.delete(source);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            tempFile.toFile().delete();
+        }
+        return false;
+    }
+
+    /**
+     * Get the cached image files in a tier, least recently used first
+     *
+     * @param directory tier directory
+     * @return list of files
+     */
+    private List<File> leastRecentlyUsed(Path directory) {
+        final var files = listFiles(directory);
+        files.sort(Comparator.comparingLong(File::lastModified));
+        return files;
+    }
+
+    /**
+     * Get the cached image files in a tier directory tree
+     *
+     * @param directory tier directory
+     * @return list of files
+     */
+    private List<File> listFiles(Path directory) {
+        final List<File> files = new ArrayList<>();
+        final var contents = directory.toFile().listFiles();
+        if (contents != null) {
+            for (var file : contents) {
+                if (file.isDirectory()) {
+                    files.addAll(listFiles(file.toPath()));
+                } else if (file.getName().endsWith(SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+}
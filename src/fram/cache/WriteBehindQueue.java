@@ -0,0 +1,198 @@
+package fram.cache;
+
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of writes to the cache, which are done by a thread of their own so
+ * that processing the next image doesn't have to wait for them. A write for a
+ * key which is already queued replaces the queued write. The memory held by
+ * the queued writes is limited, and a caller which would exceed the limit
+ * waits for the queue to drain.
+ *
+ * The queue is flushed when it is closed, and by a shutdown hook if the
+ * program is stopped before then.
+ *
+ * @author Jason Leake
+ */
+public class WriteBehindQueue {
+
+    private static final String CLASSNAME = WriteBehindQueue.class.getName();
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<>();
+    private final long maxBytes;
+    private final Thread thread;
+    private final Thread shutdownHook;
+    private long queuedBytes = 0;
+    private boolean writing = false;
+    private boolean closed = false;
+    private int coalesced = 0;
+
+    /**
+     * A queued write
+     */
+    private static final class Write {
+
+        private final long bytes;
+        private final Runnable action;
+        private final Runnable discard;
+
+        /**
+         * Constructor
+         *
+         * @param size memory held by the write
+         * @param write action which does the write
+         * @param discarded action which frees what the write holds if it is
+         * replaced before it is done, or null
+         */
+        Write(long size, Runnable write, Runnable discarded) {
+            bytes = size;
+            action = write;
+            discard = discarded;
+        }
+    }
+
+    /**
+     * Constructor. Starts the writing thread.
+     *
+     * @param name name of the writing thread
+     * @param maxQueuedBytes maximum memory held by queued writes
+     */
+    public WriteBehindQueue(String name, long maxQueuedBytes) {
+        maxBytes = maxQueuedBytes;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+        shutdownHook = new Thread(this::flush, name + " shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Queue a write
+     *
+     * @param key key of the data being written, which replaces any queued
+     * write with the same key
+     * @param bytes memory held by the write until it is done
+     * @param action action which does the write
+     */
+    public void submit(String key, long bytes, Runnable action) {
+        submit(key, bytes, action, null);
+    }
+
+    /**
+     * Queue a write which holds something, such as a lock or a pooled image,
+     * which the write frees when it is done
+     *
+     * @param key key of the data being written, which replaces any queued
+     * write with the same key
+     * @param bytes memory held by the write until it is done
+     * @param action action which does the write
+     * @param discard action which frees what the write holds if it is
+     * replaced by a later write before it is done, or null
+     */
+    public void submit(String key, long bytes, Runnable action, Runnable discard) {
+        Write replaced = null;
+        var queued = false;
+        synchronized (this) {
+            while (!closed && queuedBytes > 0 && queuedBytes + bytes > maxBytes
+                    && !pending.containsKey(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!closed) {
+                replaced = pending.put(key, new Write(bytes, action, discard));
+                if (replaced != null) {
+                    queuedBytes -= replaced.bytes;
+                    coalesced++;
+                }
+                queuedBytes += bytes;
+                queued = true;
+                notifyAll();
+            }
+        }
+        if (!queued) {
+            // Nothing left to do the write, so do it now
+            action.run();
+        } else if (replaced != null && replaced.discard != null) {
+            replaced.discard.run();
+        }
+    }
+
+    /**
+     * Do the queued writes until the queue is closed
+     */
+    private void run() {
+        while (true) {
+            final Write write;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                final var iterator = pending.values().iterator();
+                write = iterator.next();
+                iterator.remove();
+                writing = true;
+            }
+            try {
+                write.action.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            }
+            synchronized (this) {
+                queuedBytes -= write.bytes;
+                writing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until all the queued writes have been done
+     */
+    public synchronized void flush() {
+        while ((writing || !pending.isEmpty()) && thread.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Do all the queued writes and stop the writing thread. Writes submitted
+     * after this are done immediately by the caller.
+     */
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // Already shutting down
+        }
+        if (coalesced > 0) {
+            System.out.println(String.format("%d cache writes coalesced", coalesced));
+        }
+    }
+}
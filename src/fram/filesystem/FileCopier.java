@@ -1,37 +1,47 @@
 package fram.filesystem;
 
+import fram.rotation.LosslessJpegTransform;
+import fram.rotation.RasterPool;
 import fram.rotation.RotationCounter;
+import fram.rotation.TransformPlan;
 import fram.rotation.Orientation;
-import fram.border.BorderProcessor;
+import fram.border.CropModel;
 import com.drew.imaging.jpeg.JpegMetadataReader;
 import com.drew.imaging.jpeg.JpegProcessingException;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.MetadataException;
 import com.drew.metadata.exif.ExifIFD0Directory;
+import fram.AnnotationRenderer;
 import fram.Cache;
 import fram.Configuration;
+import fram.DateAndTimeNow;
 import fram.ExifDateReader;
 import fram.Hash;
+import fram.ImageDecoder;
+import fram.JpegEncoder;
 import fram.ManipulateImage;
 import fram.Options.Option;
 import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import java.security.NoSuchAlgorithmException;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
 
 /**
@@ -47,7 +57,14 @@ public class FileCopier {
     private static final Logger logger = Logger.getLogger(FileCopier.class.getName());
     private static final String COPY_LIST_FILE = "copy_list.txt";
     private final Cache theCache;
+    private final JpegEncoder encoder;
+    // Border crops shared between the scans in a directory
+    private final CropModel cropModel = new CropModel();
     private final static String CLASSNAME = FileCopier.class.getName();
+    // Quarantine fallback action of copying the input file unchanged
+    private final static String FALLBACK_COPY = "copy";
+    // Cleared if the file system turns out not to support hard links at all
+    private static volatile boolean linksSupported = true;
     // This is used by the unit tests
 
     /**
@@ -60,6 +77,7 @@ public class FileCopier {
     public FileCopier(Configuration configuration, Cache cache, boolean copylist) {
         theCache = cache;
         theConfiguration = configuration;
+        encoder = new JpegEncoder(configuration);
         if (copylist) {
             try {
                 copyListFile = new BufferedWriter(new FileWriter(COPY_LIST_FILE));
@@ -153,156 +171,480 @@ public class FileCopier {
             Path photoframeOutputFile) {
 
         File outputFile = photoframeOutputFile.toFile();
+        // Files which failed in an earlier run go straight to the fallback,
+        // without being read again, until they change
+        if (theCache != null && theCache.getQuarantineAction(originalFile) != null) {
+            if (theConfiguration.isSet(Option.VERBOSE)) {
+                System.out.println("Quarantined, copying " + originalFile);
+            }
+            copyUnchanged(originalFile, photoframeOutputFile);
+            return;
+        }
+
         String hash = null;
+        String outputKey = null;
+        // The index number is different in every run, so images showing it
+        // can only use the base images from the cache, not the output images
+        final boolean perRunAnnotation = theConfiguration.isSet(Option.SHOW_INDEX);
         if (theCache != null) {
             try {
-                hash = new Hash(theConfiguration).generate(originalFile.toFile());
-                Path cachedFile = theCache.getCachedFile(originalFile, hash);
+                final var hasher = new Hash(theConfiguration);
+                hash = hasher.generate(originalFile.toFile());
+                if (hash != null && !perRunAnnotation) {
+                    outputKey = hasher.generate(hash, describeAnnotation(originalFile));
+                }
+                Path cachedFile = theCache.getCachedFile(outputKey);
                 if (cachedFile != null) {
                     // There is a cached file all ready so no need to process
                     // the original file
                     if (theConfiguration.isSet(Option.VERBOSE)) {
                         System.out.println("Copying cached file to " + outputFile);
-                        copyFile(cachedFile, photoframeOutputFile);
                     }
-                    return;
+                    // If another process has just moved or deleted the cached
+                    // file then carry on and process the original file
+                    if (copyFile(cachedFile, photoframeOutputFile)) {
+                        return;
+                    }
                 }
             } catch (NoSuchAlgorithmException ex) {
                 Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
             }
         }
 
-        // Else cached files are not enabled, or this file isn't in the cache
-        final double ANNOTATION_SIZE = 1.0 / 25.0;
+        // If the image only needs its orientation corrected then do it
+        // without decoding it, which is faster and loses no quality
+        if (isOrientationOnly() && transformLosslessly(originalFile, photoframeOutputFile)) {
+            if (theCache != null && outputKey != null) {
+                theCache.cacheFile(outputKey, hash, outputFile);
+            }
+            return;
+        }
 
+        final BufferedImage image;
         try {
-            URL imagePath = originalFile.toFile().toURI().toURL();
-            BufferedImage image = ImageIO.read(imagePath);
-
-            // Rotate the image if necessary
-            if (!theConfiguration.isSet(Option.NO_ROTATE_IMAGES)) {
-                Orientation imageOrientation = getOrientation(originalFile);
-                switch (imageOrientation) {
-
-                    case NONE:
-                        break;
+            image = getBaseImage(originalFile, hash);
+        } catch (IIOException ex) {
+            // The input file can't be decoded, so just copy it and don't try
+            // again in later runs
+            System.out.println(photoframeOutputFile.toString() + ": " + ex);
+            copyUnchanged(originalFile, photoframeOutputFile);
+            if (theCache != null) {
+                theCache.quarantine(originalFile, FALLBACK_COPY);
+            }
+            return;
+        } catch (IOException | RuntimeException ex) {
+            // It may be read next time, so just copy it for this run
+            System.out.println(photoframeOutputFile.toString() + ": " + ex);
+            copyUnchanged(originalFile, photoframeOutputFile);
+            return;
+        }
 
-                    case CLOCKWISE:
-                        image = ManipulateImage.rotate(image, -1);
-                        break;
+        var annotated = image;
+        try {
+            annotated = annotate(image, index, originalFile);
 
-                    case ANTICLOCKWISE:
-                        image = ManipulateImage.rotate(image, 1);
-                        break;
+            if (theConfiguration.isSet(Option.VERBOSE)) {
+                System.out.println("Writing " + outputFile);
+            }
+            encoder.write(annotated, outputFile);
+            if (theCache != null && outputKey != null) {
+                theCache.cacheFile(outputKey, hash, outputFile);
+            }
+        } catch (IOException ex) {
+            // If this fails then just copy the file
+            System.out.println(photoframeOutputFile.toString() + ": " + ex);
+            copyUnchanged(originalFile, photoframeOutputFile);
+        } finally {
+            // The image is finished with, so it can be used for the next file
+            RasterPool.release(annotated);
+        }
+    }
 
-                    case UPSIDE_DOWN:
-                        image = ManipulateImage.rotate(image, 2);
-                        break;
+    /**
+     * Check whether the output image is just the input image with its
+     * orientation corrected, with no annotation or other processing, and
+     * the encoder settings are left at their defaults
+     *
+     * @return true if only the orientation is corrected
+     */
+    private boolean isOrientationOnly() {
+        return !encoder.isCustomised()
+                && !theConfiguration.isSet(Option.NO_ROTATE_IMAGES)
+                && !theConfiguration.isSet(Option.NO_DIRECTORY_NAME)
+                && !theConfiguration.isSet(Option.SHOW_FILENAME)
+                && !theConfiguration.isSet(Option.SHOW_INDEX)
+                && !theConfiguration.isSet(Option.SHOW_DATE)
+                && !theConfiguration.isSet(Option.REMOVE_BORDER);
+    }
 
-                    case MIRROR_LEFT_RIGHT:
-                        image = ManipulateImage.mirror(image);
-                        break;
+    /**
+     * Correct the orientation of a JPEG file in the DCT domain, without
+     * decoding it. This isn't done if the image would need resizing, to the
+     * minimum width or to fit the frame, or if the file is not a kind that
+     * can be transformed this way.
+     *
+     * @param originalFile input file
+     * @param photoframeOutputFile output file
+     * @return true if the output file has been written
+     */
+    private boolean transformLosslessly(Path originalFile, Path photoframeOutputFile) {
+        try {
+            final var transform = LosslessJpegTransform.open(originalFile);
+            if (transform == null) {
+                return false;
+            }
+            final var orientation = getOrientation(originalFile);
+            if (theConfiguration.isFitToFrame()) {
+                final var frameWidth = theConfiguration.getFrameWidth();
+                final var frameHeight = theConfiguration.getFrameHeight();
+                if ((frameWidth > 0 && transform.getWidth(orientation) > frameWidth)
+                        || (frameHeight > 0 && transform.getHeight(orientation) > frameHeight)) {
+                    return false;
+                }
+            } else if (transform.getWidth(orientation) < theConfiguration.getMinimumWidth()) {
+                return false;
+            }
+            if (theConfiguration.isSet(Option.STRIP_METADATA)) {
+                transform.stripMetadata();
+            }
+            if (transform.write(orientation, photoframeOutputFile)) {
+                RotationCounter.bump(orientation);
+                if (theConfiguration.isSet(Option.VERBOSE)) {
+                    System.out.println("Losslessly transformed " + originalFile);
+                }
+                return true;
+            }
+        } catch (IOException ex) {
+            // Leave it to the normal path to deal with
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        }
+        return false;
+    }
 
-                    case MIRROR_TOP_BOTTOM:
-                        image = ManipulateImage.rotate(ManipulateImage.mirror(
-                                ManipulateImage.rotate(image, +1)), -1);
-                        break;
+    /**
+     * Copy the input file to the output file without any processing, as the
+     * fallback when it can't be processed
+     *
+     * @param originalFile input file
+     * @param photoframeOutputFile output file
+     */
+    private void copyUnchanged(Path originalFile, Path photoframeOutputFile) {
+        try {
+            Files.copy(originalFile, photoframeOutputFile, REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+    }
 
-                    case ANTICLOCKWISE_AND_MIRROR:
-                        image = ManipulateImage.rotate(ManipulateImage.mirror(image), 1);
-                        break;
+    /**
+     * Put the images for every file on the copy list into the cache, without
+     * writing anything to the output directory. Files already in the cache
+     * are skipped. The work is done by a small number of low priority threads
+     * and the reading and writing of files is limited to the specified rate,
+     * so that this can run while the machine is being used for something
+     * else.
+     *
+     * @param threads number of threads to use
+     * @param megabytesPerSecond maximum rate of file reading and writing, 0
+     * for no limit
+     * @return number of files added to the cache
+     */
+    public int prefillCache(int threads, int megabytesPerSecond) {
+        final var throttle = new IoThrottle(megabytesPerSecond);
+        final var added = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            final var thread = new Thread(runnable, "prefill");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (var originalFile : fileMap.values()) {
+            executor.execute(() -> {
+                if (prefillFile(originalFile, throttle)) {
+                    final var count = added.incrementAndGet();
+                    if (count % 100 == 0) {
+                        System.out.println(String.format("%d files added to cache at %s",
+                                count, DateAndTimeNow.getNewline()));
+                    }
+                }
+            });
+        }
+        fileMap.clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return added.get();
+    }
 
-                    case CLOCKWISE_AND_MIRROR:
-                        image = ManipulateImage.rotate(ManipulateImage.mirror(image), -1);
-                        break;
+    /**
+     * Put the images for a file into the cache, if they are not there already
+     *
+     * @param originalFile input file
+     * @param throttle limits the rate of file reading and writing
+     * @return true if the file was added to the cache
+     */
+    private boolean prefillFile(Path originalFile, IoThrottle throttle) {
+        final var perRunAnnotation = theConfiguration.isSet(Option.SHOW_INDEX);
+        if (theCache.getQuarantineAction(originalFile) != null) {
+            return false;
+        }
+        try {
+            throttle.transfer(originalFile.toFile().length());
+            final var hasher = new Hash(theConfiguration);
+            final var hash = hasher.generate(originalFile.toFile());
+            if (hash == null) {
+                return false;
+            }
+            final var outputKey = perRunAnnotation ? null
+                    : hasher.generate(hash, describeAnnotation(originalFile));
+            if (perRunAnnotation ? theCache.hasBaseImage(hash)
+                    : theCache.getCachedFile(outputKey) != null) {
+                return false;
+            }
+            if (theConfiguration.isSet(Option.VERBOSE)) {
+                System.out.println("Prefill cache for " + originalFile);
+            }
+            // The nightly run transforms these losslessly, so the cache must
+            // hold the same file rather than a re-encoded one
+            if (!perRunAnnotation && isOrientationOnly()) {
+                final var transformed = Files.createTempFile("fram", ".jpg");
+                if (transformLosslessly(originalFile, transformed)) {
+                    final var length = transformed.toFile().length();
+                    theCache.cacheTemporaryFile(outputKey, hash, transformed.toFile());
+                    throttle.transfer(length);
+                    return true;
                 }
-                RotationCounter.bump(imageOrientation);
+                Files.deleteIfExists(transformed);
+            }
+            final BufferedImage image;
+            try {
+                image = getBaseImage(originalFile, hash);
+            } catch (IIOException ex) {
+                // The nightly run will copy it unchanged
+                System.out.println(originalFile.toString() + ": " + ex);
+                theCache.quarantine(originalFile, FALLBACK_COPY);
+                return false;
+            } catch (IOException | RuntimeException ex) {
+                // The nightly run will try it again
+                System.out.println(originalFile.toString() + ": " + ex);
+                return false;
+            }
+            // Allow for the base and output images written to the cache,
+            // assuming the JPEG files are about a tenth of the raw image size
+            final var written = 2L * 3 * image.getWidth() * image.getHeight() / 10;
+            if (perRunAnnotation) {
+                RasterPool.release(image);
+            } else {
+                // The index isn't drawn, so any value will do
+                theCache.cacheOutputImage(outputKey, hash, annotate(image, 0, originalFile));
             }
+            throttle.transfer(written);
+            return true;
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(CLASSNAME).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
 
-            int width = image.getWidth();
-            if (image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
-                image = ManipulateImage.make3ByteBgr(image);
+    /**
+     * Get the base image for a file, from the cache if it is there, otherwise
+     * by reading the file and putting the result in the cache
+     *
+     * @param originalFile input file
+     * @param hash hash of input file, or null if not caching
+     * @return the base image
+     * @throws IIOException thrown if the image cannot be decoded
+     * @throws IOException thrown if the image cannot be read
+     */
+    private BufferedImage getBaseImage(Path originalFile, String hash) throws IOException {
+        BufferedImage image = null;
+        if (theCache != null) {
+            image = theCache.getBaseImage(hash);
+            if (image != null && theConfiguration.isSet(Option.VERBOSE)) {
+                System.out.println("Using cached base image for " + originalFile);
             }
+        }
 
-            // Remove any border around the image if necessary.  This is not
-            // yet fully implemented
-            if (theConfiguration.isSet(Option.REMOVE_BORDER)) {
-                BorderProcessor borderProcessor = new BorderProcessor(image);
-                if (borderProcessor.hasBorder()) {
-                    image = borderProcessor.removeBorder();
+        // Else cached files are not enabled, or this file isn't in the cache
+        if (image == null && theCache != null) {
+            // Another process sharing the cache may be generating it
+            try (var entryLock = theCache.lockEntry(hash)) {
+                image = theCache.getBaseImage(hash);
+                if (image == null) {
+                    image = createBaseImage(originalFile);
+                    theCache.cacheBaseImage(hash, image, entryLock);
                 }
-
             }
+        } else if (image == null) {
+            image = createBaseImage(originalFile);
+        }
+        return image;
+    }
 
-            final int minimumWidth = theConfiguration.getMinimumWidth();
-            if (width < minimumWidth) {
-                image = ManipulateImage.resizeImage(image, minimumWidth);
-            }
+    /**
+     * Read the original file and rotate, convert and resize it ready for
+     * annotation
+     *
+     * @param originalFile input file
+     * @return the base image
+     * @throws IIOException thrown if the image cannot be decoded
+     * @throws IOException thrown if the image cannot be read
+     */
+    private BufferedImage createBaseImage(Path originalFile) throws IOException {
+        var imageOrientation = Orientation.NONE;
+        if (!theConfiguration.isSet(Option.NO_ROTATE_IMAGES)) {
+            imageOrientation = getOrientation(originalFile);
+        }
 
-            Graphics2D graphics2d = image.createGraphics();
+        // An image much bigger than the frame is decoded at reduced size.
+        // The frame size is turned round to match the image as stored.
+        final var fitToFrame = theConfiguration.isFitToFrame();
+        BufferedImage image;
+        if (!fitToFrame) {
+            image = ImageDecoder.read(originalFile, 0, 0);
+        } else if (imageOrientation.isTransposed()) {
+            image = ImageDecoder.read(originalFile, theConfiguration.getFrameHeight(),
+                    theConfiguration.getFrameWidth());
+        } else {
+            image = ImageDecoder.read(originalFile, theConfiguration.getFrameWidth(),
+                    theConfiguration.getFrameHeight());
+        }
+        if (!theConfiguration.isSet(Option.NO_ROTATE_IMAGES)) {
+            RotationCounter.bump(imageOrientation);
+        }
 
-            double size = image.getHeight() * ANNOTATION_SIZE;
+        // Work out everything that needs doing to the image, and then do it
+        // in one pass
+        final var plan = new TransformPlan(image, imageOrientation);
+        plan.setFilter(theConfiguration.getResamplingFilter());
 
-            if (theConfiguration.isSet(Option.NO_DIRECTORY_NAME)) {
-                double xoffset = image.getHeight() * ANNOTATION_SIZE;
-                double yoffset = image.getHeight() * ANNOTATION_SIZE;
-                graphics2d.setFont(new Font("TimesRoman",
-                        Font.PLAIN, (int) size));
-                graphics2d.setColor(Color.red);
-                // Add the name of the immediate containing directory to the image
-                graphics2d.drawString(originalFile.getName(originalFile.
-                        getNameCount() - 2).toString(),
-                        (int) xoffset, (int) yoffset);
-            }
+        // Remove any border around the image if necessary
+        if (theConfiguration.isSet(Option.REMOVE_BORDER)) {
+            plan.setCrop(cropModel.getCropRectangle(originalFile.getParent(), image));
+        }
+        final int width = plan.getWidth();
+
+        final int minimumWidth = theConfiguration.getMinimumWidth();
+        if (fitToFrame) {
+            plan.fitWithin(theConfiguration.getFrameWidth(), theConfiguration.getFrameHeight());
+        } else if (width < minimumWidth) {
+            plan.scaleToWidth(minimumWidth);
+        }
+        final var decoded = image;
+        image = plan.apply(decoded);
+        if (image != decoded) {
+            RasterPool.release(decoded);
+        }
+        return image;
+    }
+
+    /**
+     * Describe the annotation which {@link #annotate} draws on the image,
+     * apart from the index number. This is part of the key of the cached
+     * output image, along with the annotation settings, so everything drawn
+     * which depends on where the input file is must be included. The base
+     * image is keyed on the file contents alone, so renaming a directory only
+     * needs the annotation redrawn.
+     *
+     * @param originalFile input file
+     * @return description of the annotation
+     */
+    private String describeAnnotation(Path originalFile) {
+        final var description = new StringBuilder();
+        if (theConfiguration.isSet(Option.NO_DIRECTORY_NAME)) {
+            description.append("directory=").append(getDirectoryName(originalFile)).append('\n');
+        }
+        if (theConfiguration.isSet(Option.SHOW_FILENAME)) {
+            description.append("filename=").append(originalFile.getFileName()).append('\n');
+        }
+        // The date comes from the file contents, so is covered by the hash
+        return description.toString();
+    }
+
+    /**
+     * Get the name of the directory containing the input file
+     *
+     * @param originalFile input file
+     * @return directory name
+     */
+    private static String getDirectoryName(Path originalFile) {
+        return originalFile.getName(originalFile.getNameCount() - 2).toString();
+    }
+
+    /**
+     * Draw the requested annotation text onto the image. The directory name
+     * is drawn in colour, so a greyscale image is converted to colour first,
+     * and the greyscale image is released to the {@link RasterPool}.
+     *
+     * @param image image to annotate
+     * @param index index number of output file
+     * @param originalFile input file
+     * @return the annotated image
+     */
+    private BufferedImage annotate(BufferedImage image, int index, Path originalFile) {
+        final double ANNOTATION_SIZE = 1.0 / 25.0;
+
+        if (theConfiguration.isSet(Option.NO_DIRECTORY_NAME)
+                && image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            final var greyscale = image;
+            image = ManipulateImage.make3ByteBgr(greyscale);
+            RasterPool.release(greyscale);
+        }
+
+        double size = image.getHeight() * ANNOTATION_SIZE;
+        // The default colour of a new Graphics2D, used until the directory
+        // name is drawn
+        var colour = Color.white;
+
+        if (theConfiguration.isSet(Option.NO_DIRECTORY_NAME)) {
+            double xoffset = image.getHeight() * ANNOTATION_SIZE;
+            double yoffset = image.getHeight() * ANNOTATION_SIZE;
+            colour = Color.red;
+            // Add the name of the immediate containing directory to the image
+            AnnotationRenderer.draw(image, getDirectoryName(originalFile), (int) size,
+                    colour, (int) xoffset, (int) yoffset);
+        }
+
+        String indexText = "";
+        if (theConfiguration.isSet(Option.SHOW_FILENAME)) {
+            // Want debugging info on image
+            indexText = originalFile.getFileName().toString();
+        }
 
-            String indexText = "";
-            if (theConfiguration.isSet(Option.SHOW_FILENAME)) {
-                // Want debugging info on image
-                indexText = originalFile.getFileName().toString();
+        if (theConfiguration.isSet(Option.SHOW_INDEX)) {
+            if (!indexText.isBlank()) {
+                indexText += " ";
             }
+            indexText += String.format("%06d", index);
+        }
 
-            if (theConfiguration.isSet(Option.SHOW_INDEX)) {
+        if (theConfiguration.isSet(Option.SHOW_DATE)) {
+            String theDate = new ExifDateReader(originalFile).getDate();
+            if (!theDate.isEmpty()) {
                 if (!indexText.isBlank()) {
                     indexText += " ";
                 }
-                indexText += String.format("%06d", index);
-            }
-
-            if (theConfiguration.isSet(Option.SHOW_DATE)) {
-                String theDate = new ExifDateReader(originalFile).getDate();
-                if (!theDate.isEmpty()) {
-                    if (!indexText.isBlank()) {
-                        indexText += " ";
-                    }
-                    indexText += theDate;
-                }
+                indexText += theDate;
             }
+        }
 
-            // Add text to the bottom of the image if required
-            if (!indexText.isEmpty()) {
-                double xoffset = image.getHeight() * ANNOTATION_SIZE;
-                double yoffset = image.getHeight() * ANNOTATION_SIZE;
-                double x = xoffset;
-                double y = yoffset + image.getHeight() - (size * 2);
-                graphics2d.setFont(new Font("TimesRoman", Font.PLAIN, (int) size / 2));
-                graphics2d.drawString(indexText, (int) x, (int) y);
-            }
-            if (theConfiguration.isSet(Option.VERBOSE)) {
-                System.out.println("Writing " + outputFile);
-            }
-            ImageIO.write(image, "jpg", outputFile);
-            if (theCache != null) {
-                theCache.cacheFile(originalFile, hash, outputFile);
-            }
-        } catch (IOException ex) {
-            // If this fails then just copy the file
-            System.out.println(photoframeOutputFile.toString() + ": " + ex);
-            try {
-                Files.copy(originalFile, photoframeOutputFile, REPLACE_EXISTING);
-            } catch (IOException exc) {
-                logger.log(Level.SEVERE, null, ex);
-            }
+        // Add text to the bottom of the image if required
+        if (!indexText.isEmpty()) {
+            double xoffset = image.getHeight() * ANNOTATION_SIZE;
+            double yoffset = image.getHeight() * ANNOTATION_SIZE;
+            double x = xoffset;
+            double y = yoffset + image.getHeight() - (size * 2);
+            AnnotationRenderer.draw(image, indexText, (int) size / 2, colour,
+                    (int) x, (int) y);
         }
+        return image;
     }
 
     /**
@@ -360,7 +702,10 @@ public class FileCopier {
     }
 
     /**
-     * Copy the file without modifying it
+     * Copy the file without modifying it. If both files are on the same file
+     * system then the output file is just made a hard link to the input file,
+     * which needs no data to be copied. This is only used for the files in
+     * the cache and the output tree, which are never changed once written.
      *
      * @param inputfile the input file
      * @param outputFile the output file
@@ -374,7 +719,10 @@ public class FileCopier {
             if (!parent.toFile().exists()) {
                 parent.toFile().mkdirs();
             }
-            Files.copy(inputfile, outputFile, REPLACE_EXISTING);
+            Files.deleteIfExists(outputFile);
+            if (!createLink(inputfile, outputFile)) {
+                transferFile(inputfile, outputFile);
+            }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, null, ex);
             System.err.println("(Input file \"" + inputfile.toString() + "\")");
@@ -383,4 +731,48 @@ public class FileCopier {
         return copyOk;
     }
 
+    /**
+     * Try to make a hard link to a file. This fails if the files are on
+     * different file systems, or the file system doesn't support links.
+     *
+     * @param inputfile the existing file
+     * @param outputFile the link to create
+     * @return true if the link was created
+     */
+    private static boolean createLink(Path inputfile, Path outputFile) {
+        if (!linksSupported) {
+            return false;
+        }
+        try {
+            Files.createLink(outputFile, inputfile);
+            return true;
+        } catch (UnsupportedOperationException ex) {
+            linksSupported = false;
+        } catch (IOException ex) {
+            // Typically the files are on different devices, so copy instead
+        }
+        return false;
+    }
+
+    /**
+     * Copy a file by transferring the data between file channels, which lets
+     * the operating system do the copy without it passing through the Java
+     * heap
+     *
+     * @param inputfile the input file
+     * @param outputFile the output file
+     * @throws IOException thrown if the copy fails
+     */
+    private static void transferFile(Path inputfile, Path outputFile) throws IOException {
+        try (var input = FileChannel.open(inputfile, StandardOpenOption.READ);
+                var output = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final var size = input.size();
+            var position = 0L;
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+
 }
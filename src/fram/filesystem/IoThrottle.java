@@ -0,0 +1,49 @@
+package fram.filesystem;
+
+/**
+ * Limits the rate at which files are read and written, so that background
+ * work doesn't starve anything else using the disks. Callers say how much
+ * they are about to transfer and are made to wait for their turn.
+ *
+ * @author Jason Leake
+ */
+class IoThrottle {
+
+    private static final long NANOSECONDS_PER_SECOND = 1_000_000_000L;
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+    private final long bytesPerSecond;
+    // Time at which the transfers allowed so far will have completed
+    private long nextFree = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param megabytesPerSecond maximum transfer rate, 0 for no limit
+     */
+    IoThrottle(int megabytesPerSecond) {
+        bytesPerSecond = megabytesPerSecond * BYTES_PER_MEGABYTE;
+    }
+
+    /**
+     * Wait until the specified number of bytes can be transferred without
+     * exceeding the rate
+     *
+     * @param bytes number of bytes about to be transferred
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    void transfer(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        final long start;
+        final long now = System.nanoTime();
+        synchronized (this) {
+            start = Math.max(nextFree, now);
+            nextFree = start + bytes * NANOSECONDS_PER_SECOND / bytesPerSecond;
+        }
+        final var waitTime = start - now;
+        if (waitTime > 0) {
+            Thread.sleep(waitTime / 1_000_000L, (int) (waitTime % 1_000_000L));
+        }
+    }
+}
@@ -32,6 +32,10 @@ public class ProcessFiles {
      * Run the processing
      */
     public void run() {
+        if (theConfiguration.isSet(Option.PREFILL)) {
+            prefill();
+            return;
+        }
         var runTheMainProgramCode = false;
         if (theConfiguration.isSet(Option.CHECK)) {
             try {
@@ -51,7 +55,7 @@ public class ProcessFiles {
                 deleteExistingFiles(theConfiguration.getOutputDirectory());
                 Cache cache = null;
                 if (theConfiguration.isSet(Option.CACHE)) {
-                    cache = new Cache();
+                    cache = new Cache(theConfiguration);
                 }
                 walker = new Walker(theConfiguration, cache);
                 walker.process(true);
@@ -73,6 +77,24 @@ public class ProcessFiles {
         }
     }
 
+    /**
+     * Put any images missing from the cache into it, leaving the output
+     * directory alone
+     */
+    private void prefill() {
+        final var cache = new Cache(theConfiguration);
+        try {
+            walker = new Walker(theConfiguration, cache);
+            walker.process(true);
+            final var added = walker.prefill();
+            System.out.println(String.format("Added %d files to cache\n", added));
+        } catch (IOException ex) {
+            Logger.getLogger(ProcessFiles.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            cache.close();
+        }
+    }
+
     /**
      * Get the number of files copied to the output directory
      *
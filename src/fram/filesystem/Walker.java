@@ -90,6 +90,22 @@ class Walker implements FileVisitor<Path> {
         }
     }
 
+    /**
+     * Put the images for the files into the cache without copying them to the
+     * output directory. The list of excluded files must have been built
+     * first.
+     *
+     * @return number of files added to the cache
+     * @throws IOException
+     */
+    public int prefill() throws IOException {
+        buildTheList = false;
+        System.out.println("Prefilling cache");
+        Files.walkFileTree(theConfiguration.getInputPath(), this);
+        return fileCopier.prefillCache(theConfiguration.getPrefillThreads(),
+                theConfiguration.getPrefillRate());
+    }
+
     /**
      * Called when a directory is about to be entered. Checks if the directory
      * is to be excluded.
@@ -0,0 +1,1333 @@
+package fram.rotation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Corrects the orientation of a JPEG file without decoding it to pixels, in
+ * the same way as jpegtran. The entropy coded data is decoded to the
+ * quantized DCT coefficients, the 8x8 blocks are rearranged and the
+ * coefficients in each block transposed and negated as needed, and the
+ * result is Huffman coded again with tables optimized for it. No image
+ * quality is lost.
+ *
+ * Only baseline and extended sequential Huffman coded files with a single
+ * scan are handled, which is what cameras and scanners write. Progressive
+ * and arithmetic coded files are left to the normal decoding path, and so
+ * are CMYK and YCCK files, which have to be converted to colour.
+ *
+ * A transform which moves the right or bottom edge of the image to the left
+ * or top can only be done if that edge is a whole number of MCUs (minimum
+ * coded units), as the padding in a partial MCU would otherwise be moved into
+ * view. Like jpegtran's -trim option, a partial MCU column or row on such an
+ * edge is dropped, which removes at most 15 pixels.
+ *
+ * @author Jason Leake
+ */
+public class LosslessJpegTransform {
+
+    private static final int SOI = 0xd8;
+    private static final int EOI = 0xd9;
+    private static final int SOF0 = 0xc0;
+    private static final int SOF1 = 0xc1;
+    private static final int DHT = 0xc4;
+    private static final int DQT = 0xdb;
+    private static final int DRI = 0xdd;
+    private static final int SOS = 0xda;
+    private static final int APP0 = 0xe0;
+    private static final int APP15 = 0xef;
+    private static final int COM = 0xfe;
+    private static final int RST0 = 0xd0;
+    private static final int RST7 = 0xd7;
+    private static final int TEM = 0x01;
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+    // Natural (row major) position of each coefficient in zigzag order
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10,
+        17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63};
+
+    private final byte[] data;
+    private final List<byte[]> keptSegments = new ArrayList<>();
+    private final int[][] quantTables = new int[4][];
+    private final boolean[] quantSixteenBit = new boolean[4];
+    private final HuffmanDecoder[] dcDecoders = new HuffmanDecoder[4];
+    private final HuffmanDecoder[] acDecoders = new HuffmanDecoder[4];
+    private int restartInterval = 0;
+    private int frameMarker;
+    private int width;
+    private int height;
+    private Component[] components;
+    private int maxH;
+    private int maxV;
+    private int scanStart;
+
+    /**
+     * A colour component of the image
+     */
+    private static final class Component {
+
+        private int id;
+        private int h;
+        private int v;
+        private int quantTable;
+        private int dcTable;
+        private int acTable;
+        private int blocksX;
+        private int blocksY;
+        private short[] coefficients;
+        private int predictor;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fileData contents of the JPEG file
+     */
+    private LosslessJpegTransform(byte[] fileData) {
+        data = fileData;
+    }
+
+    /**
+     * Read the headers of a JPEG file
+     *
+     * @param file the JPEG file
+     * @return the transform, or null if the file cannot be transformed
+     * losslessly
+     * @throws IOException thrown if the file cannot be read
+     */
+    public static LosslessJpegTransform open(Path file) throws IOException {
+        final var transform = new LosslessJpegTransform(Files.readAllBytes(file));
+        return transform.readHeaders() ? transform : null;
+    }
+
+    /**
+     * Get the width of the image after its orientation has been corrected
+     *
+     * @param orientation orientation of the image
+     * @return width in pixels
+     */
+    public int getWidth(Orientation orientation) {
+        final var transform = OrientationTransform.correcting(orientation);
+        return transform.transpose ? trimmedHeight(transform) : trimmedWidth(transform);
+    }
+
+    /**
+     * Get the height of the image after its orientation has been corrected
+     *
+     * @param orientation orientation of the image
+     * @return height in pixels
+     */
+    public int getHeight(Orientation orientation) {
+        final var transform = OrientationTransform.correcting(orientation);
+        return transform.transpose ? trimmedWidth(transform) : trimmedHeight(transform);
+    }
+
+    /**
+     * Leave EXIF, XMP, comments and other metadata out of the output file.
+     * The JFIF header, ICC colour profile and Adobe colour transform are
+     * kept, as they are needed to show the colours correctly.
+     */
+    public void stripMetadata() {
+        keptSegments.removeIf(segment -> !hasIdentifier(segment, APP0, "JFIF")
+                && !hasIdentifier(segment, APP0 + 2, "ICC_PROFILE")
+                && !hasIdentifier(segment, APP0 + 14, "Adobe"));
+    }
+
+    /**
+     * Check whether a marker segment is a particular kind of APPn segment
+     *
+     * @param segment marker segment, including the marker
+     * @param marker APPn marker
+     * @param identifier identifier at the start of the segment contents
+     * @return true if the segment matches
+     */
+    private static boolean hasIdentifier(byte[] segment, int marker, String identifier) {
+        if ((segment[1] & 0xff) != marker || segment.length < 4 + identifier.length()) {
+            return false;
+        }
+        for (var index = 0; index < identifier.length(); index++) {
+            if (segment[4 + index] != identifier.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Correct the orientation of the image and write the result. The EXIF
+     * orientation tag in the output file is set to normal.
+     *
+     * @param orientation orientation of the image
+     * @param outputFile output file
+     * @return true if successful, false if the image cannot be transformed
+     * losslessly
+     * @throws IOException thrown if the image data is corrupt or the output
+     * file cannot be written
+     */
+    public boolean write(Orientation orientation, Path outputFile) throws IOException {
+        final var transform = OrientationTransform.correcting(orientation);
+        if (trimmedWidth(transform) == 0 || trimmedHeight(transform) == 0) {
+            // Smaller than one MCU, so there is nothing left after trimming
+            return false;
+        }
+        if (!decodeScan()) {
+            return false;
+        }
+        final var output = new ByteArrayOutputStream(data.length);
+        encode(transform, output);
+        Files.write(outputFile, output.toByteArray());
+        return true;
+    }
+
+    /**
+     * Width of the source image, after trimming if needed for the transform
+     *
+     * @param transform the transform
+     * @return width in pixels
+     */
+    private int trimmedWidth(OrientationTransform transform) {
+        final var mcuWidth = 8 * maxH;
+        return transform.trimsWidth() ? width / mcuWidth * mcuWidth : width;
+    }
+
+    /**
+     * Height of the source image, after trimming if needed for the transform
+     *
+     * @param transform the transform
+     * @return height in pixels
+     */
+    private int trimmedHeight(OrientationTransform transform) {
+        final var mcuHeight = 8 * maxV;
+        return transform.trimsHeight() ? height / mcuHeight * mcuHeight : height;
+    }
+
+    /**
+     * Read the markers up to the start of the scan
+     *
+     * @return true if the file can be transformed
+     * @throws IOException thrown if the file is corrupt
+     */
+    private boolean readHeaders() throws IOException {
+        if (data.length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != SOI) {
+            return false;
+        }
+        var position = 2;
+        while (true) {
+            position = findMarker(position);
+            if (position < 0) {
+                return false;
+            }
+            final var marker = data[position + 1] & 0xff;
+            position += 2;
+            if (marker == EOI) {
+                return false;
+            }
+            if (marker == TEM || (marker >= RST0 && marker <= RST7)) {
+                continue;
+            }
+            final var length = readShort(position);
+            final var end = position + length;
+            if (length < 2 || end > data.length) {
+                throw new IOException("Bad JPEG segment length");
+            }
+            if ((marker >= APP0 && marker <= APP15) || marker == COM) {
+                final var segment = new byte[length + 2];
+                System.arraycopy(data, position - 2, segment, 0, segment.length);
+                keptSegments.add(segment);
+            } else if (marker == DQT) {
+                readQuantTables(position + 2, end);
+            } else if (marker == DHT) {
+                readHuffmanTables(position + 2, end);
+            } else if (marker == DRI) {
+                restartInterval = readShort(position + 2);
+            } else if (marker == SOF0 || marker == SOF1) {
+                if (!readFrame(marker, position + 2)) {
+                    return false;
+                }
+            } else if (marker >= 0xc2 && marker <= 0xcf && marker != DHT && marker != 0xc8
+                    && marker != 0xcc) {
+                // Progressive, lossless or arithmetic coded
+                return false;
+            } else if (marker == SOS) {
+                return components != null && readScanHeader(position + 2, end);
+            }
+            position = end;
+        }
+    }
+
+    /**
+     * Find the next marker, skipping any fill bytes
+     *
+     * @param start position to start looking
+     * @return position of the 0xff byte of the marker, or -1 if there isn't
+     * one
+     */
+    private int findMarker(int start) {
+        var position = start;
+        while (position + 1 < data.length) {
+            if ((data[position] & 0xff) == 0xff) {
+                final var next = data[position + 1] & 0xff;
+                if (next != 0 && next != 0xff) {
+                    return position;
+                }
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a big endian 16 bit value
+     *
+     * @param position position of the value
+     * @return the value
+     */
+    private int readShort(int position) {
+        return ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+    }
+
+    /**
+     * Read a DQT segment
+     *
+     * @param start start of segment contents
+     * @param end end of segment
+     * @throws IOException thrown if the segment is corrupt
+     */
+    private void readQuantTables(int start, int end) throws IOException {
+        var position = start;
+        while (position < end) {
+            final var precision = (data[position] & 0xff) >> 4;
+            final var id = data[position] & 0x0f;
+            position++;
+            if (id > 3 || position + 64 * (precision + 1) > end) {
+                throw new IOException("Bad JPEG quantization table");
+            }
+            final var table = new int[64];
+            for (var k = 0; k < 64; k++) {
+                if (precision == 0) {
+                    table[ZIGZAG[k]] = data[position++] & 0xff;
+                } else {
+                    table[ZIGZAG[k]] = readShort(position);
+                    position += 2;
+                }
+            }
+            quantTables[id] = table;
+            quantSixteenBit[id] = precision != 0;
+        }
+    }
+
+    /**
+     * Read a DHT segment
+     *
+     * @param start start of segment contents
+     * @param end end of segment
+     * @throws IOException thrown if the segment is corrupt
+     */
+    private void readHuffmanTables(int start, int end) throws IOException {
+        var position = start;
+        while (position < end) {
+            final var tableClass = (data[position] & 0xff) >> 4;
+            final var id = data[position] & 0x0f;
+            position++;
+            if (id > 3 || position + 16 > end) {
+                throw new IOException("Bad JPEG Huffman table");
+            }
+            final var bits = new int[17];
+            var total = 0;
+            for (var length = 1; length <= 16; length++) {
+                bits[length] = data[position++] & 0xff;
+                total += bits[length];
+            }
+            if (total > 256 || position + total > end) {
+                throw new IOException("Bad JPEG Huffman table");
+            }
+            final var values = new int[total];
+            for (var index = 0; index < total; index++) {
+                values[index] = data[position++] & 0xff;
+            }
+            final var decoder = new HuffmanDecoder(bits, values);
+            if (tableClass == 0) {
+                dcDecoders[id] = decoder;
+            } else {
+                acDecoders[id] = decoder;
+            }
+        }
+    }
+
+    /**
+     * Read a SOF segment
+     *
+     * @param marker frame marker
+     * @param start start of segment contents
+     * @return true if the frame can be transformed
+     */
+    private boolean readFrame(int marker, int start) {
+        frameMarker = marker;
+        final var precision = data[start] & 0xff;
+        height = readShort(start + 1);
+        width = readShort(start + 3);
+        final var count = data[start + 5] & 0xff;
+        // Greyscale or three component colour only, as four components are
+        // CMYK or YCCK and the output must be converted to colour
+        if (precision != 8 || height == 0 || width == 0 || (count != 1 && count != 3)) {
+            return false;
+        }
+        components = new Component[count];
+        maxH = 1;
+        maxV = 1;
+        for (var index = 0; index < count; index++) {
+            final var position = start + 6 + index * 3;
+            final var component = new Component();
+            component.id = data[position] & 0xff;
+            component.h = (data[position + 1] & 0xff) >> 4;
+            component.v = data[position + 1] & 0x0f;
+            component.quantTable = data[position + 2] & 0x0f;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4
+                    || component.quantTable > 3) {
+                return false;
+            }
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[index] = component;
+        }
+        if (count == 1) {
+            // A single component is not interleaved, so its blocks are just
+            // in raster order whatever its sampling factors say
+            components[0].h = 1;
+            components[0].v = 1;
+            maxH = 1;
+            maxV = 1;
+        }
+        final var mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+        final var mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+        for (var component : components) {
+            component.blocksX = mcusX * component.h;
+            component.blocksY = mcusY * component.v;
+        }
+        return true;
+    }
+
+    /**
+     * Read a SOS segment
+     *
+     * @param start start of segment contents
+     * @param end end of segment
+     * @return true if the scan can be transformed
+     */
+    private boolean readScanHeader(int start, int end) {
+        final var count = data[start] & 0xff;
+        if (count != components.length) {
+            // Not a single interleaved scan
+            return false;
+        }
+        for (var index = 0; index < count; index++) {
+            final var position = start + 1 + index * 2;
+            final var id = data[position] & 0xff;
+            final var tables = data[position + 1] & 0xff;
+            if (components[index].id != id) {
+                return false;
+            }
+            components[index].dcTable = tables >> 4;
+            components[index].acTable = tables & 0x0f;
+            if (components[index].dcTable > 3 || components[index].acTable > 3
+                    || dcDecoders[components[index].dcTable] == null
+                    || acDecoders[components[index].acTable] == null
+                    || quantTables[components[index].quantTable] == null) {
+                return false;
+            }
+        }
+        final var position = start + 1 + count * 2;
+        final var spectralStart = data[position] & 0xff;
+        final var spectralEnd = data[position + 1] & 0xff;
+        final var approximation = data[position + 2] & 0xff;
+        if (spectralStart != 0 || spectralEnd != 63 || approximation != 0) {
+            return false;
+        }
+        scanStart = end;
+        return true;
+    }
+
+    /**
+     * Decode the entropy coded data of the scan to DCT coefficients
+     *
+     * @return true if successful, false if the file has more scans
+     * @throws IOException thrown if the data is corrupt
+     */
+    private boolean decodeScan() throws IOException {
+        for (var component : components) {
+            component.coefficients = new short[component.blocksX * component.blocksY * 64];
+            component.predictor = 0;
+        }
+        final var reader = new BitReader(data, scanStart);
+        final var mcusX = components[0].blocksX / components[0].h;
+        final var mcusY = components[0].blocksY / components[0].v;
+        final var mcuCount = mcusX * mcusY;
+        for (var mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                reader.restart();
+                for (var component : components) {
+                    component.predictor = 0;
+                }
+            }
+            final var mcuX = mcu % mcusX;
+            final var mcuY = mcu / mcusX;
+            for (var component : components) {
+                for (var y = 0; y < component.v; y++) {
+                    for (var x = 0; x < component.h; x++) {
+                        final var block = (mcuY * component.v + y) * component.blocksX
+                                + mcuX * component.h + x;
+                        decodeBlock(reader, component, block * 64);
+                    }
+                }
+            }
+        }
+        // Anything other than the end of the image means more scans follow
+        final var marker = findMarker(reader.getPosition());
+        return marker >= 0 && (data[marker + 1] & 0xff) == EOI;
+    }
+
+    /**
+     * Decode one block of coefficients
+     *
+     * @param reader source of the entropy coded data
+     * @param component component the block belongs to
+     * @param offset position of the block in the component coefficients
+     * @throws IOException thrown if the data is corrupt
+     */
+    private void decodeBlock(BitReader reader, Component component, int offset)
+            throws IOException {
+        final var coefficients = component.coefficients;
+        final var size = dcDecoders[component.dcTable].decode(reader);
+        if (size > 0) {
+            component.predictor += extend(reader.getBits(size), size);
+        }
+        coefficients[offset] = (short) component.predictor;
+        final var ac = acDecoders[component.acTable];
+        var k = 1;
+        while (k < 64) {
+            final var symbol = ac.decode(reader);
+            final var run = symbol >> 4;
+            final var bits = symbol & 0x0f;
+            if (bits == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Bad JPEG coefficient data");
+            }
+            coefficients[offset + ZIGZAG[k]] = (short) extend(reader.getBits(bits), bits);
+            k++;
+        }
+    }
+
+    /**
+     * Convert the additional bits of a coefficient to its signed value
+     *
+     * @param value additional bits
+     * @param bits number of bits
+     * @return signed value
+     */
+    private static int extend(int value, int bits) {
+        return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+    }
+
+    /**
+     * Write the transformed image
+     *
+     * @param transform the transform
+     * @param output destination for the JPEG file
+     * @throws IOException thrown if the image cannot be encoded
+     */
+    private void encode(OrientationTransform transform, ByteArrayOutputStream output)
+            throws IOException {
+        final var count = components.length;
+        final var outputWidth = transform.transpose ? trimmedHeight(transform)
+                : trimmedWidth(transform);
+        final var outputHeight = transform.transpose ? trimmedWidth(transform)
+                : trimmedHeight(transform);
+        final var outputMaxH = transform.transpose ? maxV : maxH;
+        final var outputMaxV = transform.transpose ? maxH : maxV;
+        final var mcusX = (outputWidth + 8 * outputMaxH - 1) / (8 * outputMaxH);
+        final var mcusY = (outputHeight + 8 * outputMaxV - 1) / (8 * outputMaxV);
+
+        // Luminance uses the first pair of Huffman tables, and the colour
+        // components share the second pair
+        final var dcFrequencies = new int[2][257];
+        final var acFrequencies = new int[2][257];
+        final var block = new short[64];
+        final var counter = new SymbolCounter(dcFrequencies, acFrequencies);
+        encodeScan(transform, mcusX, mcusY, block, counter);
+        final var dcEncoders = new HuffmanEncoder[2];
+        final var acEncoders = new HuffmanEncoder[2];
+        final var tableCount = count == 1 ? 1 : 2;
+        for (var table = 0; table < tableCount; table++) {
+            dcEncoders[table] = new HuffmanEncoder(dcFrequencies[table]);
+            acEncoders[table] = new HuffmanEncoder(acFrequencies[table]);
+        }
+
+        output.write(0xff);
+        output.write(SOI);
+        for (var segment : keptSegments) {
+            output.write(patchOrientation(segment));
+        }
+        writeQuantTables(transform, output);
+        writeFrame(transform, outputWidth, outputHeight, output);
+        for (var table = 0; table < tableCount; table++) {
+            dcEncoders[table].writeTable(output, table);
+            acEncoders[table].writeTable(output, 0x10 | table);
+        }
+        writeScanHeader(output);
+        final var writer = new BitWriter(output);
+        encodeScan(transform, mcusX, mcusY, block,
+                new SymbolWriter(writer, dcEncoders, acEncoders));
+        writer.flush();
+        output.write(0xff);
+        output.write(EOI);
+    }
+
+    /**
+     * Go through the blocks of the transformed image in scan order, passing
+     * the symbols of each one to the specified sink
+     *
+     * @param transform the transform
+     * @param mcusX number of MCUs across the output image
+     * @param mcusY number of MCUs down the output image
+     * @param block buffer for a transformed block
+     * @param sink receives the symbols
+     * @throws IOException thrown if the sink fails
+     */
+    private void encodeScan(OrientationTransform transform, int mcusX, int mcusY,
+            short[] block, SymbolSink sink) throws IOException {
+        for (var component : components) {
+            component.predictor = 0;
+        }
+        for (var mcuY = 0; mcuY < mcusY; mcuY++) {
+            for (var mcuX = 0; mcuX < mcusX; mcuX++) {
+                for (var index = 0; index < components.length; index++) {
+                    final var component = components[index];
+                    final var h = transform.transpose ? component.v : component.h;
+                    final var v = transform.transpose ? component.h : component.v;
+                    final var blocksX = mcusX * h;
+                    final var blocksY = mcusY * v;
+                    for (var y = 0; y < v; y++) {
+                        for (var x = 0; x < h; x++) {
+                            transformBlock(transform, component, blocksX, blocksY,
+                                    mcuX * h + x, mcuY * v + y, block);
+                            encodeBlock(component, index == 0 ? 0 : 1, block, sink);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a block of the transformed image
+     *
+     * @param transform the transform
+     * @param component component the block belongs to
+     * @param blocksX number of blocks across the component in the output
+     * @param blocksY number of blocks down the component in the output
+     * @param x horizontal position of the block in the output
+     * @param y vertical position of the block in the output
+     * @param block receives the coefficients in natural order
+     */
+    private static void transformBlock(OrientationTransform transform, Component component,
+            int blocksX, int blocksY, int x, int y, short[] block) {
+        final var mirroredX = transform.mirrorX ? blocksX - 1 - x : x;
+        final var mirroredY = transform.mirrorY ? blocksY - 1 - y : y;
+        final var sourceX = transform.transpose ? mirroredY : mirroredX;
+        final var sourceY = transform.transpose ? mirroredX : mirroredY;
+        final var offset = (sourceY * component.blocksX + sourceX) * 64;
+        final var coefficients = component.coefficients;
+        for (var v = 0; v < 8; v++) {
+            for (var u = 0; u < 8; u++) {
+                var value = transform.transpose ? coefficients[offset + u * 8 + v]
+                        : coefficients[offset + v * 8 + u];
+                // Mirroring negates the odd frequencies in that direction
+                if ((transform.mirrorX && (u & 1) == 1) != (transform.mirrorY && (v & 1) == 1)) {
+                    value = (short) -value;
+                }
+                block[v * 8 + u] = value;
+            }
+        }
+    }
+
+    /**
+     * Pass the Huffman symbols and additional bits for one block to a sink
+     *
+     * @param component component the block belongs to
+     * @param table Huffman table pair used for the component
+     * @param block coefficients in natural order
+     * @param sink receives the symbols
+     * @throws IOException thrown if the sink fails
+     */
+    private static void encodeBlock(Component component, int table, short[] block,
+            SymbolSink sink) throws IOException {
+        final var difference = block[0] - component.predictor;
+        component.predictor = block[0];
+        final var dcSize = magnitude(difference);
+        sink.dc(table, dcSize, difference);
+        var run = 0;
+        for (var k = 1; k < 64; k++) {
+            final int value = block[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+            } else {
+                while (run > 15) {
+                    sink.ac(table, 0xf0, 0, 0);
+                    run -= 16;
+                }
+                final var size = magnitude(value);
+                sink.ac(table, (run << 4) | size, size, value);
+                run = 0;
+            }
+        }
+        if (run > 0) {
+            // End of block
+            sink.ac(table, 0x00, 0, 0);
+        }
+    }
+
+    /**
+     * Get the number of bits needed for the magnitude of a value
+     *
+     * @param value the value
+     * @return number of bits
+     */
+    private static int magnitude(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Write the quantization tables, transposed if the image is
+     *
+     * @param transform the transform
+     * @param output destination
+     */
+    private void writeQuantTables(OrientationTransform transform, ByteArrayOutputStream output) {
+        for (var id = 0; id < 4; id++) {
+            final var table = quantTables[id];
+            if (table == null) {
+                continue;
+            }
+            final var sixteenBit = quantSixteenBit[id];
+            final var length = 2 + 1 + 64 * (sixteenBit ? 2 : 1);
+            output.write(0xff);
+            output.write(DQT);
+            output.write(length >> 8);
+            output.write(length & 0xff);
+            output.write((sixteenBit ? 0x10 : 0) | id);
+            for (var k = 0; k < 64; k++) {
+                final var natural = ZIGZAG[k];
+                final var value = transform.transpose
+                        ? table[(natural % 8) * 8 + natural / 8] : table[natural];
+                if (sixteenBit) {
+                    output.write(value >> 8);
+                }
+                output.write(value & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Write the frame header
+     *
+     * @param transform the transform
+     * @param outputWidth width of the output image
+     * @param outputHeight height of the output image
+     * @param output destination
+     */
+    private void writeFrame(OrientationTransform transform, int outputWidth, int outputHeight,
+            ByteArrayOutputStream output) {
+        final var length = 8 + 3 * components.length;
+        output.write(0xff);
+        output.write(frameMarker);
+        output.write(length >> 8);
+        output.write(length & 0xff);
+        output.write(8);
+        output.write(outputHeight >> 8);
+        output.write(outputHeight & 0xff);
+        output.write(outputWidth >> 8);
+        output.write(outputWidth & 0xff);
+        output.write(components.length);
+        for (var component : components) {
+            final var h = transform.transpose ? component.v : component.h;
+            final var v = transform.transpose ? component.h : component.v;
+            output.write(component.id);
+            output.write((h << 4) | v);
+            output.write(component.quantTable);
+        }
+    }
+
+    /**
+     * Write the scan header
+     *
+     * @param output destination
+     */
+    private void writeScanHeader(ByteArrayOutputStream output) {
+        final var length = 6 + 2 * components.length;
+        output.write(0xff);
+        output.write(SOS);
+        output.write(length >> 8);
+        output.write(length & 0xff);
+        output.write(components.length);
+        for (var index = 0; index < components.length; index++) {
+            output.write(components[index].id);
+            output.write(index == 0 ? 0x00 : 0x11);
+        }
+        output.write(0);
+        output.write(63);
+        output.write(0);
+    }
+
+    /**
+     * Set the orientation tag in an EXIF segment to normal, as the image no
+     * longer needs rotating. Other segments are returned unchanged.
+     *
+     * @param segment marker segment, including the marker
+     * @return the segment to write
+     */
+    private static byte[] patchOrientation(byte[] segment) {
+        final var tiff = 10;
+        if (!hasIdentifier(segment, APP0 + 1, "Exif\0\0") || segment.length < tiff + 8) {
+            return segment;
+        }
+        final var littleEndian = segment[tiff] == 'I';
+        final var ifd = tiff + readInt(segment, tiff + 4, littleEndian);
+        if (ifd < tiff || ifd + 2 > segment.length) {
+            return segment;
+        }
+        final var entries = readShort(segment, ifd, littleEndian);
+        for (var entry = 0; entry < entries; entry++) {
+            final var position = ifd + 2 + entry * 12;
+            if (position + 12 > segment.length) {
+                break;
+            }
+            if (readShort(segment, position, littleEndian) == EXIF_ORIENTATION_TAG) {
+                final var patched = segment.clone();
+                patched[position + 8] = (byte) (littleEndian ? 1 : 0);
+                patched[position + 9] = (byte) (littleEndian ? 0 : 1);
+                return patched;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Read a 16 bit value from TIFF data
+     *
+     * @param buffer the data
+     * @param position position of the value
+     * @param littleEndian byte order
+     * @return the value
+     */
+    private static int readShort(byte[] buffer, int position, boolean littleEndian) {
+        final var first = buffer[position] & 0xff;
+        final var second = buffer[position + 1] & 0xff;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    /**
+     * Read a 32 bit value from TIFF data
+     *
+     * @param buffer the data
+     * @param position position of the value
+     * @param littleEndian byte order
+     * @return the value
+     */
+    private static int readInt(byte[] buffer, int position, boolean littleEndian) {
+        final var first = readShort(buffer, position, littleEndian);
+        final var second = readShort(buffer, position + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    /**
+     * Receives the Huffman symbols of the encoded image
+     */
+    private interface SymbolSink {
+
+        /**
+         * Take a DC symbol
+         *
+         * @param table Huffman table pair
+         * @param size magnitude category, which is the symbol
+         * @param value DC difference
+         * @throws IOException thrown if it cannot be written
+         */
+        void dc(int table, int size, int value) throws IOException;
+
+        /**
+         * Take an AC symbol
+         *
+         * @param table Huffman table pair
+         * @param symbol run length and magnitude category
+         * @param size magnitude category
+         * @param value coefficient
+         * @throws IOException thrown if it cannot be written
+         */
+        void ac(int table, int symbol, int size, int value) throws IOException;
+    }
+
+    /**
+     * Counts the symbols, for building optimized Huffman tables
+     */
+    private static final class SymbolCounter implements SymbolSink {
+
+        private final int[][] dcFrequencies;
+        private final int[][] acFrequencies;
+
+        /**
+         * Constructor
+         *
+         * @param dc DC symbol counts for each table
+         * @param ac AC symbol counts for each table
+         */
+        SymbolCounter(int[][] dc, int[][] ac) {
+            dcFrequencies = dc;
+            acFrequencies = ac;
+        }
+
+        @Override
+        public void dc(int table, int size, int value) {
+            dcFrequencies[table][size]++;
+        }
+
+        @Override
+        public void ac(int table, int symbol, int size, int value) {
+            acFrequencies[table][symbol]++;
+        }
+    }
+
+    /**
+     * Writes the Huffman coded symbols
+     */
+    private static final class SymbolWriter implements SymbolSink {
+
+        private final BitWriter writer;
+        private final HuffmanEncoder[] dcEncoders;
+        private final HuffmanEncoder[] acEncoders;
+
+        /**
+         * Constructor
+         *
+         * @param bitWriter destination
+         * @param dc DC encoders for each table
+         * @param ac AC encoders for each table
+         */
+        SymbolWriter(BitWriter bitWriter, HuffmanEncoder[] dc, HuffmanEncoder[] ac) {
+            writer = bitWriter;
+            dcEncoders = dc;
+            acEncoders = ac;
+        }
+
+        @Override
+        public void dc(int table, int size, int value) {
+            dcEncoders[table].write(writer, size);
+            writeValue(size, value);
+        }
+
+        @Override
+        public void ac(int table, int symbol, int size, int value) {
+            acEncoders[table].write(writer, symbol);
+            writeValue(size, value);
+        }
+
+        /**
+         * Write the additional bits of a value
+         *
+         * @param size number of bits
+         * @param value the value
+         */
+        private void writeValue(int size, int value) {
+            if (size > 0) {
+                writer.write(value < 0 ? value - 1 : value, size);
+            }
+        }
+    }
+
+    /**
+     * Reads bits from entropy coded data, removing stuffed bytes and stopping
+     * at markers
+     */
+    private static final class BitReader {
+
+        private final byte[] data;
+        private int position;
+        private long buffer = 0;
+        private int count = 0;
+        private boolean atMarker = false;
+
+        /**
+         * Constructor
+         *
+         * @param bytes the data
+         * @param start position of the first byte
+         */
+        BitReader(byte[] bytes, int start) {
+            data = bytes;
+            position = start;
+        }
+
+        /**
+         * Make sure there are at least 25 bits in the buffer. Past a marker
+         * zeros are supplied.
+         */
+        private void fill() {
+            while (count <= 24) {
+                var value = 0;
+                if (!atMarker && position < data.length) {
+                    value = data[position] & 0xff;
+                    if (value == 0xff) {
+                        final var next = position + 1 < data.length ? data[position + 1] & 0xff : 0;
+                        if (next == 0) {
+                            position += 2;
+                        } else {
+                            atMarker = true;
+                            value = 0;
+                        }
+                    } else {
+                        position++;
+                    }
+                }
+                buffer = (buffer << 8) | value;
+                count += 8;
+            }
+        }
+
+        /**
+         * Look at the next bits without using them
+         *
+         * @param bits number of bits, up to 16
+         * @return the bits
+         */
+        int peek(int bits) {
+            fill();
+            return (int) (buffer >>> (count - bits)) & ((1 << bits) - 1);
+        }
+
+        /**
+         * Use bits which have been looked at
+         *
+         * @param bits number of bits
+         */
+        void skip(int bits) {
+            count -= bits;
+        }
+
+        /**
+         * Read bits
+         *
+         * @param bits number of bits, up to 16
+         * @return the bits
+         */
+        int getBits(int bits) {
+            final var value = peek(bits);
+            skip(bits);
+            return value;
+        }
+
+        /**
+         * Skip to the data after a restart marker
+         *
+         * @throws IOException thrown if the restart marker is missing
+         */
+        void restart() throws IOException {
+            buffer = 0;
+            count = 0;
+            atMarker = false;
+            while (position < data.length && (data[position] & 0xff) == 0xff
+                    && position + 1 < data.length && (data[position + 1] & 0xff) == 0xff) {
+                position++;
+            }
+            if (position + 1 >= data.length || (data[position] & 0xff) != 0xff
+                    || (data[position + 1] & 0xff) < RST0 || (data[position + 1] & 0xff) > RST7) {
+                throw new IOException("Missing JPEG restart marker");
+            }
+            position += 2;
+        }
+
+        /**
+         * Get the position of the next unread byte
+         *
+         * @return position in the data
+         */
+        int getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Writes bits, stuffing a zero byte after every 0xff byte
+     */
+    private static final class BitWriter {
+
+        private final ByteArrayOutputStream output;
+        private long buffer = 0;
+        private int count = 0;
+
+        /**
+         * Constructor
+         *
+         * @param destination destination for the bytes
+         */
+        BitWriter(ByteArrayOutputStream destination) {
+            output = destination;
+        }
+
+        /**
+         * Write bits
+         *
+         * @param value the bits, in the low bits of the value
+         * @param bits number of bits, up to 16
+         */
+        void write(int value, int bits) {
+            buffer = (buffer << bits) | (value & ((1 << bits) - 1));
+            count += bits;
+            while (count >= 8) {
+                final var next = (int) (buffer >>> (count - 8)) & 0xff;
+                output.write(next);
+                if (next == 0xff) {
+                    output.write(0);
+                }
+                count -= 8;
+            }
+        }
+
+        /**
+         * Pad the last byte with one bits
+         */
+        void flush() {
+            if (count > 0) {
+                write(0x7f, 8 - count);
+            }
+        }
+    }
+
+    /**
+     * Decodes Huffman coded symbols
+     */
+    private static final class HuffmanDecoder {
+
+        private static final int LOOKUP_BITS = 9;
+        // Symbol and code length of each possible prefix, or 0 if the code
+        // is longer than the prefix
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[18];
+        private final int[] valueOffset = new int[17];
+        private final int[] values;
+
+        /**
+         * Constructor
+         *
+         * @param bits number of codes of each length
+         * @param symbols symbols in order of increasing code length
+         */
+        HuffmanDecoder(int[] bits, int[] symbols) {
+            values = symbols;
+            var code = 0;
+            var index = 0;
+            for (var length = 1; length <= 16; length++) {
+                valueOffset[length] = index - code;
+                for (var count = 0; count < bits[length]; count++) {
+                    if (length <= LOOKUP_BITS) {
+                        final var shift = LOOKUP_BITS - length;
+                        for (var fill = 0; fill < (1 << shift); fill++) {
+                            lookup[(code << shift) | fill] = (length << 8) | symbols[index];
+                        }
+                    }
+                    code++;
+                    index++;
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Decode the next symbol
+         *
+         * @param reader source of the bits
+         * @return the symbol
+         * @throws IOException thrown if the code is not in the table
+         */
+        int decode(BitReader reader) throws IOException {
+            final var entry = lookup[reader.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xff;
+            }
+            for (var length = LOOKUP_BITS + 1; length <= 16; length++) {
+                final var code = reader.peek(length);
+                if (code <= maxCode[length]) {
+                    reader.skip(length);
+                    final var index = valueOffset[length] + code;
+                    if (index < 0 || index >= values.length) {
+                        break;
+                    }
+                    return values[index];
+                }
+            }
+            throw new IOException("Bad JPEG Huffman code");
+        }
+    }
+
+    /**
+     * Huffman table built from symbol frequencies, as described in Annex K.2
+     * of the JPEG standard
+     */
+    private static final class HuffmanEncoder {
+
+        private final int[] bits = new int[33];
+        private final int[] symbols;
+        private final int[] codes = new int[256];
+        private final int[] lengths = new int[256];
+
+        /**
+         * Constructor
+         *
+         * @param symbolFrequencies frequency of each symbol, with room for a
+         * reserved symbol at 256
+         */
+        HuffmanEncoder(int[] symbolFrequencies) {
+            final var frequencies = symbolFrequencies.clone();
+            // The reserved symbol makes sure no code is all one bits
+            frequencies[256] = 1;
+            final var codeSize = new int[257];
+            final var others = new int[257];
+            Arrays.fill(others, -1);
+            while (true) {
+                var first = -1;
+                for (var symbol = 0; symbol <= 256; symbol++) {
+                    if (frequencies[symbol] > 0 && (first < 0
+                            || frequencies[symbol] <= frequencies[first])) {
+                        first = symbol;
+                    }
+                }
+                var second = -1;
+                for (var symbol = 0; symbol <= 256; symbol++) {
+                    if (symbol != first && frequencies[symbol] > 0 && (second < 0
+                            || frequencies[symbol] <= frequencies[second])) {
+                        second = symbol;
+                    }
+                }
+                if (second < 0) {
+                    break;
+                }
+                frequencies[first] += frequencies[second];
+                frequencies[second] = 0;
+                codeSize[first]++;
+                while (others[first] >= 0) {
+                    first = others[first];
+                    codeSize[first]++;
+                }
+                others[first] = second;
+                codeSize[second]++;
+                while (others[second] >= 0) {
+                    second = others[second];
+                    codeSize[second]++;
+                }
+            }
+            for (var symbol = 0; symbol <= 256; symbol++) {
+                if (codeSize[symbol] > 0) {
+                    bits[codeSize[symbol]]++;
+                }
+            }
+            // Limit the code lengths to 16 bits
+            for (var length = 32; length > 16; length--) {
+                while (bits[length] > 0) {
+                    var shorter = length - 2;
+                    while (bits[shorter] == 0) {
+                        shorter--;
+                    }
+                    bits[length] -= 2;
+                    bits[length - 1]++;
+                    bits[shorter + 1] += 2;
+                    bits[shorter]--;
+                }
+            }
+            // Remove the reserved symbol, which has the longest code
+            var longest = 16;
+            while (longest > 0 && bits[longest] == 0) {
+                longest--;
+            }
+            if (longest > 0) {
+                bits[longest]--;
+            }
+            final List<Integer> ordered = new ArrayList<>();
+            for (var length = 1; length <= 32; length++) {
+                for (var symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        ordered.add(symbol);
+                    }
+                }
+            }
+            var total = 0;
+            for (var length = 1; length <= 16; length++) {
+                total += bits[length];
+            }
+            symbols = new int[total];
+            for (var index = 0; index < total; index++) {
+                symbols[index] = ordered.get(index);
+            }
+            var code = 0;
+            var index = 0;
+            for (var length = 1; length <= 16; length++) {
+                for (var count = 0; count < bits[length]; count++) {
+                    codes[symbols[index]] = code++;
+                    lengths[symbols[index]] = length;
+                    index++;
+                }
+                code <<= 1;
+            }
+        }
+
+        /**
+         * Write the code for a symbol
+         *
+         * @param writer destination
+         * @param symbol the symbol
+         */
+        void write(BitWriter writer, int symbol) {
+            writer.write(codes[symbol], lengths[symbol]);
+        }
+
+        /**
+         * Write the table as a DHT segment
+         *
+         * @param output destination
+         * @param classAndId table class in the high nibble and id in the low
+         */
+        void writeTable(ByteArrayOutputStream output, int classAndId) {
+            final var length = 2 + 1 + 16 + symbols.length;
+            output.write(0xff);
+            output.write(DHT);
+            output.write(length >> 8);
+            output.write(length & 0xff);
+            output.write(classAndId);
+            for (var codeLength = 1; codeLength <= 16; codeLength++) {
+                output.write(bits[codeLength]);
+            }
+            for (var symbol : symbols) {
+                output.write(symbol);
+            }
+        }
+    }
+}
@@ -71,4 +71,14 @@ public enum Orientation {
 	return orientation;
     }
 
+    /**
+     * Check whether correcting this orientation swaps the width and height
+     * of the image
+     *
+     * @return true if the image is turned through a right angle
+     */
+    public boolean isTransposed() {
+        return OrientationTransform.correcting(this).transpose;
+    }
+
 }
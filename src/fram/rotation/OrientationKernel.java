@@ -0,0 +1,150 @@
+package fram.rotation;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.util.stream.IntStream;
+
+/**
+ * Corrects the orientation of a decoded image by copying the pixel bytes
+ * directly between the rasters, rather than drawing it through a rotated
+ * Graphics2D. Every orientation is a single pass into a single new image.
+ *
+ * The output is worked through in square tiles, so that when the image is
+ * transposed the bytes read from the input stay within a few cache lines'
+ * worth of rows. Bands of tiles are shared between threads for large images.
+ * Greyscale images are transformed as they are, with one byte per pixel.
+ *
+ * @author Jason Leake
+ */
+public class OrientationKernel {
+
+    private static final int TILE_SIZE = 64;
+    // Smaller images than this are done on the calling thread, as the
+    // threads cost more than they save
+    private static final long PARALLEL_PIXELS = 1 << 20;
+
+    /**
+     * Check whether an image can be transformed by this class. It must be
+     * TYPE_3BYTE_BGR or TYPE_BYTE_GRAY with its pixels packed into a single
+     * byte array.
+     *
+     * @param image the image
+     * @return true if it can be transformed
+     */
+    public static boolean isSupported(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR
+                && image.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            return false;
+        }
+        final var raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+        final var sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        final var bytesPerPixel = raster.getNumBands();
+        return sampleModel.getPixelStride() == bytesPerPixel
+                && sampleModel.getScanlineStride() == image.getWidth() * bytesPerPixel
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getOffset() == 0;
+    }
+
+    /**
+     * Correct the orientation of an image
+     *
+     * @param image the image, which must be supported by
+     * {@link #isSupported}
+     * @param orientation orientation of the image
+     * @return the corrected image, or the same image if it needs no change
+     */
+    public static BufferedImage correct(BufferedImage image, Orientation orientation) {
+        return correct(image, OrientationTransform.correcting(orientation));
+    }
+
+    /**
+     * Apply a transform to an image
+     *
+     * @param image the image, which must be supported by
+     * {@link #isSupported}
+     * @param transform the transform
+     * @return the transformed image, or the same image if it needs no change
+     */
+    static BufferedImage correct(BufferedImage image, OrientationTransform transform) {
+        if (transform.isIdentity()) {
+            return image;
+        }
+        final var width = image.getWidth();
+        final var height = image.getHeight();
+        final var outputWidth = transform.transpose ? height : width;
+        final var outputHeight = transform.transpose ? width : height;
+        final var output = RasterPool.acquire(outputWidth, outputHeight, image.getType());
+        final var bytesPerPixel = image.getRaster().getNumBands();
+        final var source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        final var target = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+        final var bands = (outputHeight + TILE_SIZE - 1) / TILE_SIZE;
+        var stream = IntStream.range(0, bands);
+        if ((long) width * height >= PARALLEL_PIXELS) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> transformBand(transform, bytesPerPixel, source, width,
+                target, outputWidth, outputHeight, band));
+        return output;
+    }
+
+    /**
+     * Fill one band of tiles of the output image
+     *
+     * @param transform the transform
+     * @param bytesPerPixel number of bytes in each pixel, 3 or 1
+     * @param source input pixel bytes
+     * @param width width of the input image
+     * @param target output pixel bytes
+     * @param outputWidth width of the output image
+     * @param outputHeight height of the output image
+     * @param band index of the band, counting from the top
+     */
+    private static void transformBand(OrientationTransform transform, int bytesPerPixel,
+            byte[] source, int width, byte[] target, int outputWidth, int outputHeight,
+            int band) {
+        final var sourceStride = width * bytesPerPixel;
+        final var targetStride = outputWidth * bytesPerPixel;
+        final var top = band * TILE_SIZE;
+        final var bottom = Math.min(top + TILE_SIZE, outputHeight);
+        // Distance in the input between the pixels for adjacent output pixels
+        final var sourceStep = (transform.mirrorX ? -1 : 1)
+                * (transform.transpose ? sourceStride : bytesPerPixel);
+        for (var left = 0; left < outputWidth; left += TILE_SIZE) {
+            final var right = Math.min(left + TILE_SIZE, outputWidth);
+            final var firstX = transform.mirrorX ? outputWidth - 1 - left : left;
+            for (var y = top; y < bottom; y++) {
+                final var mirroredY = transform.mirrorY ? outputHeight - 1 - y : y;
+                var sourceOffset = transform.transpose
+                        ? firstX * sourceStride + mirroredY * bytesPerPixel
+                        : mirroredY * sourceStride + firstX * bytesPerPixel;
+                var targetOffset = y * targetStride + left * bytesPerPixel;
+                if (sourceStep == bytesPerPixel) {
+                    // Just a flip top to bottom, so the row is unchanged
+                    System.arraycopy(source, sourceOffset, target, targetOffset,
+                            (right - left) * bytesPerPixel);
+                    continue;
+                }
+                if (bytesPerPixel == 1) {
+                    for (var x = left; x < right; x++) {
+                        target[targetOffset++] = source[sourceOffset];
+                        sourceOffset += sourceStep;
+                    }
+                    continue;
+                }
+                for (var x = left; x < right; x++) {
+                    target[targetOffset] = source[sourceOffset];
+                    target[targetOffset + 1] = source[sourceOffset + 1];
+                    target[targetOffset + 2] = source[sourceOffset + 2];
+                    targetOffset += bytesPerPixel;
+                    sourceOffset += sourceStep;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fram.rotation;
+
+/**
+ * The way the pixels or blocks of an image are rearranged to correct its
+ * orientation. The transform is a transposition if required, followed by
+ * mirroring of the result. Output position (x, y) comes from input position
+ * (x', y') where x' is x, or width - 1 - x if mirrored left to right, and
+ * similarly for y', with the two swapped over if the image is transposed.
+ *
+ * @author Jason Leake
+ */
+final class OrientationTransform {
+
+    final boolean transpose;
+    final boolean mirrorX;
+    final boolean mirrorY;
+
+    /**
+     * Constructor
+     *
+     * @param transposed swap the rows and columns
+     * @param mirroredX then mirror left to right
+     * @param mirroredY then mirror top to bottom
+     */
+    OrientationTransform(boolean transposed, boolean mirroredX, boolean mirroredY) {
+        transpose = transposed;
+        mirrorX = mirroredX;
+        mirrorY = mirroredY;
+    }
+
+    /**
+     * Get the transform which corrects the specified orientation
+     *
+     * @param orientation orientation of the image
+     * @return the transform
+     */
+    static OrientationTransform correcting(Orientation orientation) {
+        switch (orientation) {
+            case MIRROR_LEFT_RIGHT:
+                return new OrientationTransform(false, true, false);
+            case MIRROR_TOP_BOTTOM:
+                return new OrientationTransform(false, false, true);
+            case UPSIDE_DOWN:
+                return new OrientationTransform(false, true, true);
+            case CLOCKWISE_AND_MIRROR:
+                return new OrientationTransform(true, false, false);
+            case ANTICLOCKWISE:
+                // Needs rotating 90 degrees clockwise
+                return new OrientationTransform(true, true, false);
+            case CLOCKWISE:
+                // Needs rotating 90 degrees anticlockwise
+                return new OrientationTransform(true, false, true);
+            case ANTICLOCKWISE_AND_MIRROR:
+                return new OrientationTransform(true, true, true);
+            default:
+                return new OrientationTransform(false, false, false);
+        }
+    }
+
+    /**
+     * Check whether the transform leaves the image unchanged
+     *
+     * @return true if nothing needs doing
+     */
+    boolean isIdentity() {
+        return !transpose && !mirrorX && !mirrorY;
+    }
+
+    /**
+     * Check whether the right hand edge of the input image ends up on the
+     * left or top
+     *
+     * @return true if the input width must be trimmed to whole blocks
+     */
+    boolean trimsWidth() {
+        return transpose ? mirrorY : mirrorX;
+    }
+
+    /**
+     * Check whether the bottom edge of the input image ends up on the left or
+     * top
+     *
+     * @return true if the input height must be trimmed to whole blocks
+     */
+    boolean trimsHeight() {
+        return transpose ? mirrorX : mirrorY;
+    }
+}
@@ -0,0 +1,107 @@
+package fram.rotation;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of TYPE_3BYTE_BGR and TYPE_BYTE_GRAY images, kept by type and size.
+ * Most photos come from a few cameras, so the same sizes come up again and
+ * again, and an image released after one file has been written can be leased
+ * for the next instead of allocating new pixel arrays each time.
+ *
+ * An image leased from the pool has whatever pixels it was last released
+ * with, so it must be completely overwritten. It must not be used again once
+ * it has been released. Images which are never released are just garbage
+ * collected as usual. The pool only holds up to a fraction of the heap.
+ * It can be used by several threads at once.
+ *
+ * @author Jason Leake
+ */
+public class RasterPool {
+
+    // The pool is limited to this fraction of the maximum heap size
+    private static final int HEAP_FRACTION = 8;
+    private static final long CAPACITY = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+
+    private static final Map<Integer, Map<Long, ConcurrentLinkedDeque<BufferedImage>>> POOL
+            = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Lease a TYPE_3BYTE_BGR image from the pool, or make a new one if there
+     * isn't one of the right size
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @return TYPE_3BYTE_BGR image, with undefined contents
+     */
+    public static BufferedImage acquire(int width, int height) {
+        return acquire(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Lease an image from the pool, or make a new one if there isn't one of
+     * the right type and size
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     * @return the image, with undefined contents
+     */
+    public static BufferedImage acquire(int width, int height, int type) {
+        final var sizes = POOL.get(type);
+        final var images = sizes == null ? null : sizes.get(getKey(width, height));
+        final var image = images == null ? null : images.pollFirst();
+        if (image == null) {
+            return new BufferedImage(width, height, type);
+        }
+        pooledBytes.addAndGet(-getSize(image));
+        return image;
+    }
+
+    /**
+     * Return an image to the pool. Images which are not packed
+     * TYPE_3BYTE_BGR or TYPE_BYTE_GRAY are ignored, as are all images once
+     * the pool is full.
+     *
+     * @param image the image, or null
+     */
+    public static void release(BufferedImage image) {
+        if (image == null || !OrientationKernel.isSupported(image)) {
+            return;
+        }
+        final var size = getSize(image);
+        if (pooledBytes.addAndGet(size) > CAPACITY) {
+            pooledBytes.addAndGet(-size);
+            return;
+        }
+        POOL.computeIfAbsent(image.getType(), type -> new ConcurrentHashMap<>())
+                .computeIfAbsent(getKey(image.getWidth(), image.getHeight()),
+                        key -> new ConcurrentLinkedDeque<>()).addFirst(image);
+    }
+
+    /**
+     * Get the key of the images of a size
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @return the key
+     */
+    private static long getKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    /**
+     * Get the memory used by the pixels of an image
+     *
+     * @param image the image
+     * @return size in bytes
+     */
+    private static long getSize(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight()
+                * image.getRaster().getNumBands();
+    }
+}
@@ -0,0 +1,161 @@
+package fram.rotation;
+
+/**
+ * The filters which can be used to resize images, and the weights they give
+ * the input pixels. Resizing is separable, so the weights are worked out
+ * once for each axis, and each output pixel is the weighted sum of the input
+ * pixels along one axis of the weighted sums along the other.
+ *
+ * Bilinear is interpolation between the nearest pixels, with the image
+ * halved in steps when it is reduced a lot. Area averaging weights each
+ * input pixel by how much of it the output pixel covers. Lanczos uses a
+ * windowed sinc function over three lobes, which keeps fine detail sharpest
+ * but takes the longest.
+ *
+ * @author Jason Leake
+ */
+public class ResamplingFilter {
+
+    /**
+     * Area averaging
+     */
+    public static final String AREA = "area";
+    /**
+     * Bilinear interpolation
+     */
+    public static final String BILINEAR = "bilinear";
+    /**
+     * Three lobe Lanczos filter
+     */
+    public static final String LANCZOS = "lanczos";
+
+    /**
+     * Number of fraction bits in the weights
+     */
+    static final int WEIGHT_BITS = 12;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int LANCZOS_LOBES = 3;
+
+    /**
+     * Weights of the input pixels for each output pixel along one axis
+     */
+    static final class Weights {
+
+        /**
+         * Maximum number of input pixels used for an output pixel
+         */
+        final int taps;
+        /**
+         * Index of the first input pixel used for each output pixel
+         */
+        final int[] first;
+        /**
+         * Number of input pixels used for each output pixel
+         */
+        final int[] count;
+        /**
+         * Fixed point weights, taps of them for each output pixel, in order
+         * of input pixel index
+         */
+        final int[] values;
+
+        /**
+         * Constructor
+         *
+         * @param outputSize number of output pixels
+         * @param maximumTaps maximum number of input pixels for each
+         */
+        private Weights(int outputSize, int maximumTaps) {
+            taps = maximumTaps;
+            first = new int[outputSize];
+            count = new int[outputSize];
+            values = new int[outputSize * maximumTaps];
+        }
+    }
+
+    /**
+     * Check whether a filter name is recognised
+     *
+     * @param name the name
+     * @return true if it is valid
+     */
+    public static boolean isValid(String name) {
+        return AREA.equals(name) || BILINEAR.equals(name) || LANCZOS.equals(name);
+    }
+
+    /**
+     * Work out the weights for resizing along one axis. Only area averaging
+     * and Lanczos are done with weights.
+     *
+     * @param name {@link #AREA} or {@link #LANCZOS}
+     * @param outputSize size of the output along the axis
+     * @param inputSize size of the input along the axis
+     * @param mirrored true if the output runs the opposite way to the input
+     * @return the weights
+     */
+    static Weights compute(String name, int outputSize, int inputSize, boolean mirrored) {
+        final var scale = (double) inputSize / outputSize;
+        final var area = AREA.equals(name);
+        // Reducing spreads the filter out over more input pixels
+        final var stretch = Math.max(1.0, scale);
+        final var support = area ? scale / 2 : LANCZOS_LOBES * stretch;
+        final var weights = new Weights(outputSize, (int) Math.ceil(support * 2) + 3);
+        final var raw = new double[weights.taps];
+        for (var index = 0; index < outputSize; index++) {
+            var centre = (index + 0.5) * scale;
+            if (mirrored) {
+                centre = inputSize - centre;
+            }
+            final var first = Math.max(0, (int) Math.floor(centre - support));
+            final var last = Math.min(inputSize - 1, (int) Math.ceil(centre + support));
+            var count = 0;
+            var total = 0.0;
+            for (var pixel = first; pixel <= last && count < weights.taps; pixel++) {
+                final var weight = area
+                        ? Math.max(0, Math.min(pixel + 1, centre + support)
+                                - Math.max(pixel, centre - support))
+                        : lanczos((pixel + 0.5 - centre) / stretch);
+                raw[count++] = weight;
+                total += weight;
+            }
+            if (total == 0) {
+                // Only possible at the very edge, so use the nearest pixel
+                raw[0] = total = 1;
+                count = 1;
+            }
+            // Round to fixed point, with any rounding error put on the
+            // biggest weight so that they still add up to one
+            final var offset = index * weights.taps;
+            var sum = 0;
+            var biggest = 0;
+            for (var tap = 0; tap < count; tap++) {
+                weights.values[offset + tap] = (int) Math.round(raw[tap] / total * WEIGHT_ONE);
+                sum += weights.values[offset + tap];
+                if (weights.values[offset + tap] > weights.values[offset + biggest]) {
+                    biggest = tap;
+                }
+            }
+            weights.values[offset + biggest] += WEIGHT_ONE - sum;
+            weights.first[index] = first;
+            weights.count[index] = count;
+        }
+        return weights;
+    }
+
+    /**
+     * The Lanczos window function
+     *
+     * @param x distance from the centre, in input pixels at the output scale
+     * @return the weight
+     */
+    private static double lanczos(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        if (Math.abs(x) >= LANCZOS_LOBES) {
+            return 0;
+        }
+        final var px = Math.PI * x;
+        return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+    }
+}
@@ -15,7 +15,7 @@ public class RotationCounter {
     /**
      * Reset all counts
      */
-    public static void reset() {
+    public static synchronized void reset() {
         rotationCounts.clear();
     }
 
@@ -24,7 +24,7 @@ public class RotationCounter {
      *
      * @param imageOrientation image orientation
      */
-    public static void bump(Orientation imageOrientation) {
+    public static synchronized void bump(Orientation imageOrientation) {
         if (rotationCounts.containsKey(imageOrientation)) {
             rotationCounts.put(imageOrientation, 
                     rotationCounts.get(imageOrientation) + 1);
@@ -38,7 +38,7 @@ public class RotationCounter {
      *
      * @return counts as a string - just used for testing
      */
-    static public String getRotationCounts() {
+    static public synchronized String getRotationCounts() {
         final var counts = new int[Orientation.values().length];
         int index = 0;
         for (var orientation : Orientation.values()) {
@@ -0,0 +1,476 @@
+package fram.rotation;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Plans the changes made to a decoded image: cropping, correcting its
+ * orientation, converting it to TYPE_3BYTE_BGR and resizing it. Greyscale
+ * images are left as TYPE_BYTE_GRAY, with one byte per pixel. Rather than
+ * making a new copy of the image for each step, the steps are combined into
+ * a single mapping from output pixels to input pixels, which is run in one
+ * pass from the decoded image to the final image.
+ *
+ * The crop is given in the coordinates of the decoded image, before its
+ * orientation is corrected. By default resized pixels are interpolated
+ * bilinearly. When the image is reduced to less than half its size, the
+ * single pass makes it a power of two times the final size, and it is then
+ * halved in steps by averaging each 2x2 block of pixels. Bilinear
+ * interpolation on its own would skip over most of the pixels. Area
+ * averaging and Lanczos filters can be chosen instead, which are done in the
+ * single pass with precalculated weights, see {@link ResamplingFilter}.
+ *
+ * The images made along the way are leased from the {@link RasterPool}, and
+ * the intermediate ones are released as soon as they have been used.
+ *
+ * @author Jason Leake
+ */
+public class TransformPlan {
+
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int ROWS_PER_BAND = 64;
+    // Interpolation weights are fixed point with this many fraction bits
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    // The first pass of filtering is scaled down by this many bits
+    private static final int COLUMN_SHIFT = 4;
+    // Smaller images than this are done on the calling thread, as the
+    // threads cost more than they save
+    private static final long PARALLEL_PIXELS = 1 << 20;
+
+    private final OrientationTransform transform;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private Rectangle crop;
+    private int outputWidth;
+    private int outputHeight;
+    private String filter = ResamplingFilter.BILINEAR;
+
+    /**
+     * Constructor. Initially the plan is just to correct the orientation.
+     *
+     * @param source the decoded image
+     * @param orientation orientation of the decoded image
+     */
+    public TransformPlan(BufferedImage source, Orientation orientation) {
+        transform = OrientationTransform.correcting(orientation);
+        sourceWidth = source.getWidth();
+        sourceHeight = source.getHeight();
+        crop = new Rectangle(0, 0, sourceWidth, sourceHeight);
+        outputWidth = getWidth();
+        outputHeight = getHeight();
+    }
+
+    /**
+     * Crop the image. This resets any resizing.
+     *
+     * @param sourceRectangle area of the decoded image to keep
+     */
+    public void setCrop(Rectangle sourceRectangle) {
+        crop = sourceRectangle.intersection(new Rectangle(0, 0, sourceWidth, sourceHeight));
+        if (crop.isEmpty()) {
+            crop = new Rectangle(0, 0, sourceWidth, sourceHeight);
+        }
+        outputWidth = getWidth();
+        outputHeight = getHeight();
+    }
+
+    /**
+     * Get the width of the image after cropping and correcting its
+     * orientation, but before resizing
+     *
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return transform.transpose ? crop.height : crop.width;
+    }
+
+    /**
+     * Get the height of the image after cropping and correcting its
+     * orientation, but before resizing
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return transform.transpose ? crop.width : crop.height;
+    }
+
+    /**
+     * Resize the image to the specified width, keeping its aspect ratio
+     *
+     * @param width new width in pixels
+     */
+    public void scaleToWidth(int width) {
+        outputWidth = width;
+        outputHeight = Math.max(1, getHeight() * width / getWidth());
+    }
+
+    /**
+     * Shrink the image to fit within the specified size, keeping its aspect
+     * ratio. It is not enlarged if it already fits.
+     *
+     * @param maximumWidth maximum width in pixels, or 0 for no limit
+     * @param maximumHeight maximum height in pixels, or 0 for no limit
+     */
+    public void fitWithin(int maximumWidth, int maximumHeight) {
+        var scale = 1.0;
+        if (maximumWidth > 0) {
+            scale = Math.min(scale, (double) maximumWidth / getWidth());
+        }
+        if (maximumHeight > 0) {
+            scale = Math.min(scale, (double) maximumHeight / getHeight());
+        }
+        if (scale < 1.0) {
+            outputWidth = Math.max(1, (int) Math.round(getWidth() * scale));
+            outputHeight = Math.max(1, (int) Math.round(getHeight() * scale));
+            if (maximumWidth > 0) {
+                outputWidth = Math.min(outputWidth, maximumWidth);
+            }
+            if (maximumHeight > 0) {
+                outputHeight = Math.min(outputHeight, maximumHeight);
+            }
+        }
+    }
+
+    /**
+     * Choose the filter used for resizing
+     *
+     * @param name one of the {@link ResamplingFilter} names
+     */
+    public void setFilter(String name) {
+        filter = name;
+    }
+
+    /**
+     * Get the width of the final image
+     *
+     * @return width in pixels
+     */
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    /**
+     * Get the height of the final image
+     *
+     * @return height in pixels
+     */
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    /**
+     * Carry out the plan
+     *
+     * @param source the decoded image
+     * @return the final image, which may be the decoded image if it needed
+     * no change
+     */
+    public BufferedImage apply(BufferedImage source) {
+        final var whole = crop.width == sourceWidth && crop.height == sourceHeight;
+        final var resized = outputWidth != getWidth() || outputHeight != getHeight();
+        if (whole && !resized && OrientationKernel.isSupported(source)) {
+            // Just a rearrangement of the pixels
+            return OrientationKernel.correct(source, transform);
+        }
+
+        if (transform.transpose) {
+            // Reading down the columns of a large image is slow, so it is
+            // cropped and resized the way round it was decoded, and the much
+            // smaller result is then transposed
+            final var upright = new TransformPlan(source, Orientation.NONE);
+            upright.crop = crop;
+            upright.outputWidth = outputHeight;
+            upright.outputHeight = outputWidth;
+            upright.filter = filter;
+            final var resizedImage = upright.apply(source);
+            final var image = OrientationKernel.correct(resizedImage, transform);
+            if (resizedImage != source) {
+                RasterPool.release(resizedImage);
+            }
+            return image;
+        }
+
+        // Bilinear interpolation reduces to a power of two times the final
+        // size in the single pass, and then halves it. The other filters
+        // cover all the input pixels themselves.
+        var halvings = 0;
+        while (ResamplingFilter.BILINEAR.equals(filter)
+                && (outputWidth << (halvings + 1)) <= getWidth()
+                && (outputHeight << (halvings + 1)) <= getHeight()) {
+            halvings++;
+        }
+        var image = resample(source, outputWidth << halvings, outputHeight << halvings);
+        for (var step = 0; step < halvings; step++) {
+            final var half = halve(image);
+            RasterPool.release(image);
+            image = half;
+        }
+        return image;
+    }
+
+    /**
+     * Crop, correct the orientation, convert and resize the image in one pass
+     *
+     * @param source the decoded image
+     * @param width width of the resized image
+     * @param height height of the resized image
+     * @return the new image
+     */
+    private BufferedImage resample(BufferedImage source, int width, int height) {
+        // Other image types are converted as they are read, but only the
+        // cropped area
+        final byte[] pixels;
+        final int channels;
+        final int type;
+        final int stride;
+        final int originX;
+        final int originY;
+        if (OrientationKernel.isSupported(source)) {
+            pixels = ((DataBufferByte) source.getRaster().getDataBuffer()).getData();
+            channels = source.getRaster().getNumBands();
+            type = source.getType();
+            stride = sourceWidth * channels;
+            originX = crop.x;
+            originY = crop.y;
+        } else {
+            pixels = toBgr(source, crop);
+            channels = BYTES_PER_PIXEL;
+            type = BufferedImage.TYPE_3BYTE_BGR;
+            stride = crop.width * channels;
+            originX = 0;
+            originY = 0;
+        }
+
+        // The mapping is separable. Each output column corresponds to a
+        // position along one axis of the input, and each output row to a
+        // position along the other.
+        final var columnAxis = transform.transpose ? crop.height : crop.width;
+        final var rowAxis = transform.transpose ? crop.width : crop.height;
+        final var columnStep = transform.transpose ? stride : channels;
+        final var rowStep = transform.transpose ? channels : stride;
+        final var base = originY * stride + originX * channels;
+        final var output = RasterPool.acquire(width, height, type);
+        final var target = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+        if (!ResamplingFilter.BILINEAR.equals(filter)
+                && (width != columnAxis || height != rowAxis)) {
+            // Reducing a large image takes a lot of work for a small output
+            final var parallel = (long) columnAxis * rowAxis >= PARALLEL_PIXELS
+                    || (long) width * height >= PARALLEL_PIXELS;
+            convolve(pixels, base, channels, columnStep, rowStep, columnAxis,
+                    ResamplingFilter.compute(filter, width, columnAxis, transform.mirrorX),
+                    ResamplingFilter.compute(filter, height, rowAxis, transform.mirrorY),
+                    target, width, height, parallel);
+            return output;
+        }
+
+        final var columnOffsets = new int[width * 2];
+        final var columnWeights = new int[width];
+        final var rowOffsets = new int[height * 2];
+        final var rowWeights = new int[height];
+        mapAxis(width, columnAxis, transform.mirrorX, columnStep, columnOffsets,
+                columnWeights);
+        mapAxis(height, rowAxis, transform.mirrorY, rowStep, rowOffsets, rowWeights);
+        final var bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        var stream = IntStream.range(0, bands);
+        if ((long) width * height >= PARALLEL_PIXELS) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> {
+            final var bottom = Math.min((band + 1) * ROWS_PER_BAND, height);
+            for (var y = band * ROWS_PER_BAND; y < bottom; y++) {
+                final var row0 = base + rowOffsets[y * 2];
+                final var row1 = base + rowOffsets[y * 2 + 1];
+                final var rowWeight = rowWeights[y];
+                var targetOffset = y * width * channels;
+                for (var x = 0; x < width; x++) {
+                    final var column0 = columnOffsets[x * 2];
+                    final var column1 = columnOffsets[x * 2 + 1];
+                    final var columnWeight = columnWeights[x];
+                    for (var channel = 0; channel < channels; channel++) {
+                        final var top = (pixels[row0 + column0 + channel] & 0xff)
+                                * (WEIGHT_ONE - columnWeight)
+                                + (pixels[row0 + column1 + channel] & 0xff) * columnWeight;
+                        final var lower = (pixels[row1 + column0 + channel] & 0xff)
+                                * (WEIGHT_ONE - columnWeight)
+                                + (pixels[row1 + column1 + channel] & 0xff) * columnWeight;
+                        target[targetOffset + channel] = (byte) ((top * (WEIGHT_ONE - rowWeight)
+                                + lower * rowWeight + (1 << (2 * WEIGHT_BITS - 1)))
+                                >> (2 * WEIGHT_BITS));
+                    }
+                    targetOffset += channels;
+                }
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Resize with the weights of one of the filters. Each output row is made
+     * in two passes. The first is the weighted sum of the input rows it
+     * covers, for every input column, and the second is the weighted sum of
+     * those for each output pixel. The output is filled in bands of rows,
+     * which are shared out between the threads of the common fork join pool
+     * for large images.
+     *
+     * @param pixels input pixel bytes
+     * @param base offset of the first pixel of the crop
+     * @param channels number of bytes in each pixel
+     * @param columnStep distance in bytes between the input pixels along the
+     * axis of the output rows
+     * @param rowStep distance in bytes between the input pixels along the
+     * axis of the output columns
+     * @param columnAxis number of input pixels along the axis of the output
+     * rows
+     * @param columnWeights weights for the output columns
+     * @param rowWeights weights for the output rows
+     * @param target output pixel bytes
+     * @param width width of the output
+     * @param height height of the output
+     * @param parallel true to use more than one thread
+     */
+    private static void convolve(byte[] pixels, int base, int channels, int columnStep,
+            int rowStep, int columnAxis, ResamplingFilter.Weights columnWeights,
+            ResamplingFilter.Weights rowWeights, byte[] target, int width, int height,
+            boolean parallel) {
+        final var bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        var stream = IntStream.range(0, bands);
+        if (parallel) {
+            stream = stream.parallel();
+        }
+        final var finalShift = 2 * ResamplingFilter.WEIGHT_BITS - COLUMN_SHIFT;
+        stream.forEach(band -> {
+            final var columns = new int[columnAxis * channels];
+            final var bottom = Math.min((band + 1) * ROWS_PER_BAND, height);
+            for (var y = band * ROWS_PER_BAND; y < bottom; y++) {
+                Arrays.fill(columns, 0);
+                final var rowFirst = rowWeights.first[y];
+                for (var tap = 0; tap < rowWeights.count[y]; tap++) {
+                    final var weight = rowWeights.values[y * rowWeights.taps + tap];
+                    var sourceOffset = base + (rowFirst + tap) * rowStep;
+                    var index = 0;
+                    for (var column = 0; column < columnAxis; column++) {
+                        for (var channel = 0; channel < channels; channel++) {
+                            columns[index++] += weight * (pixels[sourceOffset + channel] & 0xff);
+                        }
+                        sourceOffset += columnStep;
+                    }
+                }
+                // Scaled down so that the second pass can't overflow
+                for (var index = 0; index < columns.length; index++) {
+                    columns[index] = (columns[index] + (1 << (COLUMN_SHIFT - 1))) >> COLUMN_SHIFT;
+                }
+                var targetOffset = y * width * channels;
+                for (var x = 0; x < width; x++) {
+                    final var weights = x * columnWeights.taps;
+                    final var columnFirst = columnWeights.first[x] * channels;
+                    for (var channel = 0; channel < channels; channel++) {
+                        var sum = 1 << (finalShift - 1);
+                        for (var tap = 0; tap < columnWeights.count[x]; tap++) {
+                            sum += columnWeights.values[weights + tap]
+                                    * columns[columnFirst + tap * channels + channel];
+                        }
+                        target[targetOffset++] = (byte) Math.max(0, Math.min(255,
+                                sum >> finalShift));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Work out where each output position along one axis comes from in the
+     * input
+     *
+     * @param outputSize size of the output along the axis
+     * @param inputSize size of the input along the corresponding axis
+     * @param mirrored true if the axis is mirrored
+     * @param step distance in bytes between adjacent input pixels along the
+     * axis
+     * @param offsets receives the byte offsets of the two input pixels either
+     * side of each output position
+     * @param weights receives the weight of the second input pixel
+     */
+    private static void mapAxis(int outputSize, int inputSize, boolean mirrored, int step,
+            int[] offsets, int[] weights) {
+        final var scale = (double) inputSize / outputSize;
+        for (var index = 0; index < outputSize; index++) {
+            var position = (index + 0.5) * scale - 0.5;
+            if (mirrored) {
+                position = inputSize - 1 - position;
+            }
+            position = Math.max(0, Math.min(inputSize - 1, position));
+            final var first = (int) position;
+            final var second = Math.min(first + 1, inputSize - 1);
+            offsets[index * 2] = first * step;
+            offsets[index * 2 + 1] = second * step;
+            weights[index] = (int) Math.round((position - first) * WEIGHT_ONE);
+        }
+    }
+
+    /**
+     * Halve the size of an image by averaging each 2x2 block of pixels
+     *
+     * @param image image with an even width and height, which must be
+     * supported by {@link OrientationKernel#isSupported}
+     * @return the new image
+     */
+    private static BufferedImage halve(BufferedImage image) {
+        final var width = image.getWidth() / 2;
+        final var height = image.getHeight() / 2;
+        final var output = RasterPool.acquire(width, height, image.getType());
+        final var channels = image.getRaster().getNumBands();
+        final var source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        final var target = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+        final var sourceStride = image.getWidth() * channels;
+        final var bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        var stream = IntStream.range(0, bands);
+        if ((long) width * height >= PARALLEL_PIXELS) {
+            stream = stream.parallel();
+        }
+        stream.forEach(band -> {
+            final var bottom = Math.min((band + 1) * ROWS_PER_BAND, height);
+            for (var y = band * ROWS_PER_BAND; y < bottom; y++) {
+                var upper = y * 2 * sourceStride;
+                var targetOffset = y * width * channels;
+                for (var x = 0; x < width; x++) {
+                    for (var channel = 0; channel < channels; channel++) {
+                        final var lower = upper + sourceStride;
+                        target[targetOffset++] = (byte) (((source[upper] & 0xff)
+                                + (source[upper + channels] & 0xff)
+                                + (source[lower] & 0xff)
+                                + (source[lower + channels] & 0xff) + 2) >> 2);
+                        upper++;
+                    }
+                    upper += channels;
+                }
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Convert an area of an image of any type to packed BGR bytes
+     *
+     * @param source the image
+     * @param area area to convert
+     * @return pixel bytes in TYPE_3BYTE_BGR order
+     */
+    private static byte[] toBgr(BufferedImage source, Rectangle area) {
+        final var pixels = new byte[area.width * area.height * BYTES_PER_PIXEL];
+        final var row = new int[area.width];
+        var offset = 0;
+        for (var y = area.y; y < area.y + area.height; y++) {
+            source.getRGB(area.x, y, area.width, 1, row, 0, area.width);
+            for (var rgb : row) {
+                pixels[offset++] = (byte) rgb;
+                pixels[offset++] = (byte) (rgb >> 8);
+                pixels[offset++] = (byte) (rgb >> 16);
+            }
+        }
+        return pixels;
+    }
+}
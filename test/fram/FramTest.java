@@ -1,14 +1,47 @@
 package fram;
 
+import fram.border.BorderProcessor;
+import fram.border.CropModel;
+import fram.cache.CacheEntry;
+import fram.cache.EntryLock;
+import fram.cache.LogCacheStore;
+import fram.cache.RawImageCache;
+import fram.cache.TierManager;
+import fram.filesystem.FileCopier;
+import fram.cache.WriteBehindQueue;
+import fram.rotation.LosslessJpegTransform;
+import fram.rotation.Orientation;
+import fram.rotation.OrientationKernel;
+import fram.rotation.RasterPool;
+import fram.rotation.ResamplingFilter;
+import fram.rotation.TransformPlan;
 import fram.rotation.RotationCounter;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertFalse;
@@ -212,6 +245,464 @@ public class FramTest {
         cache.close();
     }
 
+    /**
+     * Test that the second run takes everything from the cache, using the
+     * output images and then, with --showIndex, the base images
+     */
+    @Test
+    public void testCacheHits() {
+        announce("test cache hits");
+        Cache.deleteCache();
+        subAnnounce("Run program with caching but no cache");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache"});
+        subAnnounce("Run program with caching and cache exists");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+        subAnnounce("Run program with index shown, using cached base images");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory,
+            "--cache", "--showIndex"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    /**
+     * Test that a cache exported to an archive and imported into an empty
+     * cache is used by the next run
+     */
+    @Test
+    public void testCacheBundle() {
+        announce("test cache export and import");
+        var bundle = new File("test_bundle.zip");
+        Cache.deleteCache();
+        subAnnounce("Run program and export the cache");
+        assertTrue("Export", new Fram().runProgram(new String[]{inputDirectory, outputDirectory,
+            "--cache", "--exportCache=" + bundle.getPath()}));
+        Cache.deleteCache();
+        subAnnounce("Import the cache and run program");
+        assertTrue("Import", new Fram().runProgram(new String[]{inputDirectory, outputDirectory,
+            "--cache", "--importCache=" + bundle.getPath()}));
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+        assertTrue("Delete archive", bundle.delete());
+    }
+
+    /**
+     * Test that images cached with different settings are kept side by side,
+     * so switching between settings still uses the cache
+     */
+    @Test
+    public void testCacheSettings() {
+        announce("test cache with different settings");
+        Cache.deleteCache();
+        subAnnounce("Run program with default settings");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache"});
+        subAnnounce("Run program with a different minimum width");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache",
+            "--minimumWidth=100"});
+        checkRotations(new int[]{2, 0, 0, 0, 0, 0, 0, 0, 0});
+        subAnnounce("Run program with default settings again");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+        subAnnounce("Run program with file names shown, using cached base images");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache",
+            "--showFilename"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    /**
+     * Test that renaming a directory doesn't lose the cached images of the
+     * photos in it
+     *
+     * @throws IOException thrown if the test input cannot be set up
+     */
+    @Test
+    public void testCacheRename() throws IOException {
+        announce("test cache after directory rename");
+        Cache.deleteCache();
+        var renameInput = new File("test_data", "renameInput");
+        if (renameInput.exists()) {
+            delete(renameInput);
+        }
+        var source = new File(inputDirectory, "1987 11, CERN, 7 - 12 November");
+        var before = new File(renameInput, "1987 11, CERN");
+        assertTrue("Create input directory", before.mkdirs());
+        for (var name : new String[]{"IMG_0005.jpg", "Franco swiss border stones.jpg"}) {
+            Files.copy(new File(source, name).toPath(), new File(before, name).toPath());
+        }
+        subAnnounce("Run program with caching");
+        new Fram().runProgram(new String[]{renameInput.getAbsolutePath(),
+            outputDirectory, "--cache"});
+        var after = new File(renameInput, "1987 11, CERN, Geneva");
+        assertTrue("Rename directory", before.renameTo(after));
+        subAnnounce("Run program with caching after the rename");
+        new Fram().runProgram(new String[]{renameInput.getAbsolutePath(),
+            outputDirectory, "--cache"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+        assertTrue("Delete input directory", delete(renameInput));
+    }
+
+    /**
+     * Test that an input file which can't be decoded is quarantined and
+     * copied unchanged, until it is changed, and that a failure to read a
+     * file is not taken to be a decoding failure
+     *
+     * @throws IOException thrown if the test input cannot be set up
+     */
+    @Test
+    public void testQuarantine() throws IOException {
+        announce("test quarantine");
+        Cache.deleteCache();
+        var badInput = new File("test_data", "badInput");
+        if (badInput.exists()) {
+            delete(badInput);
+        }
+        var directory = new File(badInput, "2020 01, Corrupt");
+        assertTrue("Create input directory", directory.mkdirs());
+        var badFile = new File(directory, "bad.jpg");
+        Files.write(badFile.toPath(), new byte[]{(byte) 0xff, (byte) 0xd8, 0, 0, 0, 0});
+
+        subAnnounce("Run program with a corrupt file");
+        new Fram().runProgram(new String[]{badInput.getAbsolutePath(),
+            outputDirectory, "--cache"});
+        var cache = new Cache();
+        assertTrue("Quarantined", "copy".equals(cache.getQuarantineAction(badFile.toPath())));
+        cache.close();
+
+        subAnnounce("Change the corrupt file");
+        Files.write(badFile.toPath(), new byte[]{(byte) 0xff, (byte) 0xd8, 0, 0});
+        cache = new Cache();
+        assertTrue("Not quarantined", cache.getQuarantineAction(badFile.toPath()) == null);
+        cache.close();
+
+        subAnnounce("Tell decoding failures from reading failures");
+        final var notImage = new File(directory, "text.jpg");
+        Files.write(notImage.toPath(), "Not an image".getBytes());
+        for (var file : new File[]{badFile, notImage}) {
+            try {
+                ImageDecoder.read(file.toPath(), 0, 0);
+                assertTrue("Corrupt file decoded", false);
+            } catch (IIOException ex) {
+                // Expected, so the file is quarantined
+            }
+        }
+        final var missing = new File(directory, "missing.jpg").toPath();
+        try {
+            ImageDecoder.read(missing, 0, 0);
+            assertTrue("Missing file decoded", false);
+        } catch (IIOException ex) {
+            assertTrue("Missing file taken as corrupt", false);
+        } catch (IOException ex) {
+            // Expected, so the file is tried again in the next run
+        }
+        assertTrue("Delete input directory", delete(badInput));
+    }
+
+    /**
+     * Test that a run after the cache has been prefilled takes everything
+     * from the cache
+     */
+    @Test
+    public void testPrefill() {
+        announce("test prefill");
+        Cache.deleteCache();
+        subAnnounce("Prefill the cache");
+        assertTrue("Prefill", new Fram().runProgram(new String[]{inputDirectory,
+            "--prefill", "--prefillThreads=2"}));
+        subAnnounce("Run program with caching");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory, "--cache"});
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+    }
+
+    /**
+     * Test that images which only need their orientation corrected are
+     * counted as rotated, that a prefilled cache gives the same losslessly
+     * transformed files as a run without the cache, and that changing the
+     * encoder settings makes them be encoded again
+     *
+     * @throws IOException thrown if the output files cannot be read
+     */
+    @Test
+    public void testLosslessPrefill() throws IOException {
+        announce("test lossless prefill");
+        Cache.deleteCache();
+        final var uncachedDirectory = Files.createTempDirectory("uncached").toFile();
+        // The minimum width is small enough that the images aren't resized,
+        // so only need their orientation corrected
+        subAnnounce("Run program decoding the images");
+        assertTrue("Run", new Fram().runProgram(new String[]{inputDirectory,
+            uncachedDirectory.getPath(), "--minimumWidth=1"}));
+        final var decodedRotations = RotationCounter.getRotationCounts();
+        subAnnounce("Run program without caching");
+        assertTrue("Run", new Fram().runProgram(new String[]{inputDirectory,
+            uncachedDirectory.getPath(), "--noDirectory=F", "--minimumWidth=1"}));
+        assertTrue("Same rotations", RotationCounter.getRotationCounts()
+                .equals(decodedRotations));
+        subAnnounce("Prefill the cache");
+        assertTrue("Prefill", new Fram().runProgram(new String[]{inputDirectory,
+            "--prefill", "--noDirectory=F", "--minimumWidth=1"}));
+        subAnnounce("Run program with caching");
+        assertTrue("Run", new Fram().runProgram(new String[]{inputDirectory,
+            outputDirectory, "--cache", "--noDirectory=F", "--minimumWidth=1"}));
+        checkRotations(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0});
+        assertTrue("Same files", getContents(new File(uncachedDirectory, "000000"))
+                .equals(getContents(new File(outputDirectory, "000000"))));
+        subAnnounce("Run program with a different quality");
+        final var encodedDirectory = Files.createTempDirectory("encoded").toFile();
+        assertTrue("Run", new Fram().runProgram(new String[]{inputDirectory,
+            encodedDirectory.getPath(), "--noDirectory=F", "--minimumWidth=1",
+            "--quality=50"}));
+        final var encoded = getContents(new File(encodedDirectory, "000000"));
+        encoded.retainAll(getContents(new File(uncachedDirectory, "000000")));
+        assertTrue("Encoded again", encoded.isEmpty());
+        assertTrue("Delete encoded output", delete(encodedDirectory));
+        assertTrue("Delete uncached output", delete(uncachedDirectory));
+        Cache.deleteCache();
+    }
+
+    /**
+     * Get the contents of the files in a directory, ignoring their names
+     *
+     * @param directory the directory
+     * @return the contents of each file, as strings
+     * @throws IOException thrown if a file cannot be read
+     */
+    private Set<String> getContents(File directory) throws IOException {
+        final Set<String> contents = new HashSet<>();
+        for (var file : directory.listFiles()) {
+            contents.add(Arrays.toString(Files.readAllBytes(file.toPath())));
+        }
+        return contents;
+    }
+
+    /**
+     * Test that the raw image cache keeps within its budget, evicting the
+     * least recently used image, and that replacing an image doesn't count
+     * its size twice
+     */
+    @Test
+    public void testRawImageCache() {
+        announce("test raw image cache");
+        final var directory = new File(outputDirectory, "raw");
+        final var image = new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_GRAY);
+        // Room for two of the images but not three
+        final var cache = new RawImageCache(directory, 25000);
+        cache.put("first", image);
+        cache.put("first", image);
+        cache.put("second", image);
+        assertTrue("Replaced image", cache.get("first") != null);
+        assertTrue("Second image", cache.get("second") != null);
+
+        subAnnounce("Evict the least recently used");
+        new File(directory, "first.raw").setLastModified(1000);
+        cache.put("third", image);
+        assertTrue("Evicted", cache.get("first") == null);
+        assertTrue("Kept", cache.get("second") != null && cache.get("third") != null);
+    }
+
+    /**
+     * Test that the least recently used files are moved from the hot tier to
+     * the cold tier, and deleted from the cold tier, when they are over
+     * budget, and that using a cold file moves it back
+     *
+     * @throws IOException thrown if the files cannot be written
+     */
+    @Test
+    public void testTierManager() throws IOException {
+        announce("test tier manager");
+        final var hot = new File(outputDirectory, "hot");
+        final var cold = new File(outputDirectory, "cold");
+        final var oldest = new File(hot, "00/oldest.jpg");
+        final var newest = new File(hot, "01/newest.jpg");
+        for (var file : new File[]{oldest, newest}) {
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), new byte[1000]);
+        }
+        oldest.setLastModified(1000);
+        final var tiers = new TierManager(hot, 1500, cold, 1500);
+        var moves = tiers.balance();
+        final var demoted = new File(cold, "00/oldest.jpg");
+        assertTrue("Demoted", moves.size() == 1 && demoted.exists() && !oldest.exists());
+        assertTrue("Move recorded", moves.get(oldest.getAbsolutePath())
+                .equals(demoted.getAbsolutePath()));
+        assertTrue("Newest kept", newest.exists());
+
+        subAnnounce("Promote the cold file");
+        final var promoted = tiers.use(demoted.toPath()).toFile();
+        assertTrue("Promoted", promoted.equals(oldest.getAbsoluteFile())
+                && oldest.exists() && !demoted.exists());
+
+        subAnnounce("Delete from the cold tier");
+        newest.setLastModified(1000);
+        tiers.balance();
+        assertTrue("Demoted again", new File(cold, "01/newest.jpg").exists());
+        final var another = new File(hot, "02/another.jpg");
+        another.getParentFile().mkdirs();
+        Files.write(another.toPath(), new byte[1000]);
+        tiers.added(another);
+        oldest.setLastModified(1000);
+        moves = tiers.balance();
+        // The two demoted files don't both fit in the cold tier
+        assertTrue("Deleted", moves.containsValue(null));
+        assertTrue("Cold tier within budget", new File(cold, "00/oldest.jpg").exists()
+                != new File(cold, "01/newest.jpg").exists());
+        assertTrue("Hot file kept", another.exists());
+    }
+
+    /**
+     * Test that a file is copied as a hard link on the same file system, and
+     * by copying the data to another file system, where a link can't be made
+     *
+     * @throws IOException thrown if the files cannot be written
+     */
+    @Test
+    public void testCopyFile() throws IOException {
+        announce("test copy file");
+        final var source = new File(outputDirectory, "source.jpg").toPath();
+        final var contents = new byte[100000];
+        new Random(1).nextBytes(contents);
+        Files.write(source, contents);
+        final var linked = new File(outputDirectory, "linked/copy.jpg").toPath();
+        assertTrue("Linked", FileCopier.copyFile(source, linked));
+        assertTrue("Same file", Files.isSameFile(source, linked));
+
+        // Memory backed, so on a different file system where there is one
+        final var otherDirectory = new File("/dev/shm");
+        if (otherDirectory.isDirectory() && !Files.getFileStore(otherDirectory.toPath())
+                .equals(Files.getFileStore(source))) {
+            subAnnounce("Copy to another file system");
+            final var copied = Files.createTempDirectory(otherDirectory.toPath(), "fram")
+                    .resolve("copy.jpg");
+            assertTrue("Copied", FileCopier.copyFile(source, copied));
+            assertFalse("Different file", Files.isSameFile(source, copied));
+            assertTrue("Same contents", Arrays.equals(Files.readAllBytes(copied), contents));
+            Files.delete(copied);
+            Files.delete(copied.getParent());
+        }
+    }
+
+    /**
+     * Test the log structured cache store, which is used when there is no
+     * SQLite driver
+     *
+     * @throws IOException thrown if the log cannot be opened
+     */
+    @Test
+    public void testLogCacheStore() throws IOException {
+        announce("test log cache store");
+        var logFile = new File("test_store.log");
+        logFile.delete();
+        var store = new LogCacheStore(logFile);
+        for (var index = 0; index < 2500; index++) {
+            store.put(new CacheEntry("file" + (index % 10), "hash" + index, "cached" + index));
+        }
+        store.delete("file0");
+        store.close();
+
+        subAnnounce("Reopen the store");
+        store = new LogCacheStore(logFile);
+        assertTrue("Entries after reopening", store.stats().getEntries() == 9);
+        assertTrue("Deleted entry", store.lookup("file0") == null);
+        assertTrue("Latest entry", store.lookup("file9").getHash().equals("hash2499"));
+        store.close();
+        assertTrue("Delete log", logFile.delete());
+    }
+
+    /**
+     * Test that the write behind queue coalesces writes to the same key,
+     * freeing what the replaced write held, and drains when it is closed
+     *
+     * @throws IOException thrown if the lock file cannot be opened
+     * @throws InterruptedException thrown if the test is interrupted
+     */
+    @Test
+    public void testWriteBehindQueue() throws IOException, InterruptedException {
+        announce("test write behind queue");
+        final var queue = new WriteBehindQueue("test writer", Long.MAX_VALUE);
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        // Hold up the writing thread so that the next writes stay queued
+        queue.submit("blocker", 0, () -> {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+        final var lockFile = new File(outputDirectory, "entry.lock");
+        final var entryLock = new EntryLock(lockFile);
+        final var done = new AtomicInteger();
+        queue.submit("key", 0, () -> {
+            done.addAndGet(1);
+            entryLock.close();
+        }, entryLock::close);
+        queue.submit("key", 0, () -> done.addAndGet(10));
+
+        subAnnounce("Replaced write has released its lock");
+        try (var channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            final var lock = channel.tryLock();
+            assertTrue("Lock released", lock != null);
+            lock.release();
+        }
+
+        proceed.countDown();
+        queue.close();
+        assertTrue("Only the latest write done", done.get() == 10);
+        queue.submit("after", 0, () -> done.addAndGet(100));
+        assertTrue("Written immediately once closed", done.get() == 110);
+    }
+
+    /**
+     * Test two log cache stores sharing one log, as two processes sharing a
+     * cache directory do. Each sees the changes the other makes, including
+     * after the log has been compacted, which is seen from the generation
+     * in the log header, and the lock is only held while the log is being
+     * changed.
+     *
+     * @throws IOException thrown if the log cannot be opened
+     */
+    @Test
+    public void testSharedLogCacheStore() throws IOException {
+        announce("test shared log cache store");
+        final var logFile = new File(outputDirectory, "shared.log");
+        final var first = new LogCacheStore(logFile);
+        final var second = new LogCacheStore(logFile);
+        first.put(new CacheEntry("file", "hash", "cached"));
+        assertTrue("Seen by the other", second.lookup("file").getHash().equals("hash"));
+
+        subAnnounce("Compacted by the other");
+        final var generation = getLogGeneration(logFile);
+        for (var index = 0; index < 2500; index++) {
+            second.put(new CacheEntry("file" + (index % 10), "hash" + index, "cached" + index));
+        }
+        assertTrue("New generation", getLogGeneration(logFile) > generation);
+        assertTrue("After compaction", first.lookup("file9").getHash().equals("hash2499"));
+        first.delete("file9");
+        assertTrue("Deleted by the other", second.lookup("file9") == null);
+
+        subAnnounce("Lock released between changes");
+        try (var channel = FileChannel.open(new File(outputDirectory, "shared.log.lock").toPath(),
+                StandardOpenOption.WRITE)) {
+            final var lock = channel.tryLock();
+            assertTrue("Lock free", lock != null);
+            lock.release();
+        }
+        first.close();
+        second.close();
+    }
+
+    /**
+     * Get the generation from the header of a cache log
+     *
+     * @param logFile the log
+     * @return the generation
+     * @throws IOException thrown if the log cannot be read
+     */
+    private long getLogGeneration(File logFile) throws IOException {
+        final var header = ByteBuffer.wrap(Files.readAllBytes(logFile.toPath()), 0, 16);
+        assertTrue("Magic", header.getLong() == 0x4652_414d_4c4f_4732L);
+        return header.getLong();
+    }
+
     /**
      * Test without cache enabled
      */
@@ -335,20 +826,588 @@ public class FramTest {
     }
 
     /**
-     * Test that --showIndex and --cache causes --cache to be cancelled
+     * Test that --showIndex and --cache leaves --cache set, since the base
+     * images can still be cached
      */
     @Test
     public void testShowIndexCache() {
-        announce("test show index suppresses the cache option");
+        announce("test show index keeps the cache option");
         subAnnounce("Delete check file, if it exists");
 
         var fram = new Fram();
         fram.runProgram(new String[]{inputDirectory, outputDirectory,
             "--verbose", "--cache", "--showIndex"});
-        assertTrue("Cache suppressed", !fram.options.isSet(Options.Option.CACHE)
+        assertTrue("Cache not suppressed", fram.options.isSet(Options.Option.CACHE)
                 && fram.options.isSet(Options.Option.SHOW_INDEX));
     }
 
+    /**
+     * Test that the lossless JPEG transform gives the same result as rotating
+     * the decoded image, for every orientation, and that a partial MCU on an
+     * edge which moves is trimmed
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testLosslessTransform() throws IOException {
+        announce("test lossless JPEG transform");
+        final var directory = Files.createTempDirectory("lossless");
+        final var input = directory.resolve("input.jpg");
+        final var output = directory.resolve("output.jpg");
+        // A whole number of 16x16 MCUs, so nothing is trimmed
+        var source = makeGradient(96, 64);
+        ImageIO.write(source, "jpg", input.toFile());
+        final var decoded = ImageIO.read(input.toFile());
+        for (var orientation : Orientation.values()) {
+            if (orientation == Orientation.UNDEFINED) {
+                continue;
+            }
+            subAnnounce(orientation.toString());
+            final var transform = LosslessJpegTransform.open(input);
+            assertTrue("Baseline JPEG accepted", transform != null);
+            assertTrue("Transformed", transform.write(orientation, output));
+            final var expected = correctOrientation(decoded, orientation);
+            final var actual = ImageIO.read(output.toFile());
+            assertTrue("Width", actual.getWidth() == expected.getWidth());
+            assertTrue("Height", actual.getHeight() == expected.getHeight());
+            long difference = 0;
+            for (var y = 0; y < actual.getHeight(); y++) {
+                for (var x = 0; x < actual.getWidth(); x++) {
+                    final var a = actual.getRGB(x, y);
+                    final var e = expected.getRGB(x, y);
+                    for (var shift = 0; shift < 24; shift += 8) {
+                        difference += Math.abs(((a >> shift) & 0xff) - ((e >> shift) & 0xff));
+                    }
+                }
+            }
+            final var mean = (double) difference / (actual.getWidth() * actual.getHeight() * 3);
+            System.out.println("Mean difference " + mean);
+            assertTrue("Same image", mean < 3.0);
+        }
+
+        subAnnounce("Partial MCUs");
+        source = new BufferedImage(100, 60, BufferedImage.TYPE_3BYTE_BGR);
+        ImageIO.write(source, "jpg", input.toFile());
+        final var transform = LosslessJpegTransform.open(input);
+        assertTrue("Rotated width", transform.getWidth(Orientation.ANTICLOCKWISE) == 48);
+        assertTrue("Transposed width", transform.getWidth(Orientation.CLOCKWISE_AND_MIRROR) == 60);
+        assertTrue("Transformed", transform.write(Orientation.UPSIDE_DOWN, output));
+        final var trimmed = ImageIO.read(output.toFile());
+        assertTrue("Trimmed", trimmed.getWidth() == 96 && trimmed.getHeight() == 48);
+        Files.delete(input);
+        Files.delete(output);
+        Files.delete(directory);
+    }
+
+    /**
+     * Test that the raster orientation kernels give exactly the same pixels
+     * as drawing the image rotated
+     */
+    @Test
+    public void testOrientationKernel() {
+        announce("test orientation kernels");
+        final var source = makeGradient(96, 64);
+        assertTrue("Supported", OrientationKernel.isSupported(source));
+        for (var orientation : Orientation.values()) {
+            subAnnounce(orientation.toString());
+            final var expected = correctOrientation(source, orientation);
+            final var actual = OrientationKernel.correct(source, orientation);
+            assertSamePixels(expected, actual);
+        }
+    }
+
+    /**
+     * Test that a transform plan crops, rotates, converts and resizes in one
+     * pass with the same result as doing each step separately
+     */
+    @Test
+    public void testTransformPlan() {
+        announce("test transform plan");
+        final var source = makeGradient(96, 64);
+        final var crop = new Rectangle(10, 6, 50, 40);
+        for (var orientation : Orientation.values()) {
+            subAnnounce(orientation.toString());
+            final var plan = new TransformPlan(source, orientation);
+            plan.setCrop(crop);
+            final var actual = plan.apply(source);
+            final var cropped = new BufferedImage(crop.width, crop.height,
+                    BufferedImage.TYPE_3BYTE_BGR);
+            cropped.getGraphics().drawImage(source.getSubimage(crop.x, crop.y,
+                    crop.width, crop.height), 0, 0, null);
+            final var expected = OrientationKernel.correct(cropped, orientation);
+            assertSamePixels(expected, actual);
+        }
+
+        subAnnounce("Convert and resize");
+        final var rgb = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+        final var graphics = rgb.getGraphics();
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(0, 0, 40, 30);
+        graphics.dispose();
+        final var plan = new TransformPlan(rgb, Orientation.ANTICLOCKWISE);
+        plan.scaleToWidth(60);
+        final var resized = plan.apply(rgb);
+        assertTrue("Converted", resized.getType() == BufferedImage.TYPE_3BYTE_BGR);
+        assertTrue("Resized", resized.getWidth() == 60 && resized.getHeight() == 80);
+        assertTrue("Colour", resized.getRGB(30, 40) == rgb.getRGB(20, 15));
+    }
+
+    /**
+     * Test that an image much larger than needed is decoded at reduced size,
+     * but still at least twice the target size
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReducedDecode() throws IOException {
+        announce("test reduced resolution decode");
+        assertTrue("Full size", ImageDecoder.getSubsampling(4000, 3000, 0, 0) == 1);
+        assertTrue("Not reduced below twice", ImageDecoder.getSubsampling(4000, 3000, 1280, 800) == 1);
+        assertTrue("Reduced", ImageDecoder.getSubsampling(6000, 4000, 1280, 800) == 2);
+        final var file = Files.createTempFile("decode", ".jpg");
+        ImageIO.write(new BufferedImage(800, 600, BufferedImage.TYPE_3BYTE_BGR), "jpg",
+                file.toFile());
+        final var image = ImageDecoder.read(file, 200, 150);
+        assertTrue("Subsampled", image.getWidth() == 400 && image.getHeight() == 300);
+        Files.delete(file);
+    }
+
+    /**
+     * Test that --frameWidth and --frameHeight shrink the images to fit the
+     * frame, keeping their shape
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testFitToFrame() throws IOException {
+        announce("test fit to frame");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory,
+            "--frameWidth=320", "--frameHeight=200"});
+        for (var file : getOutputFiles()) {
+            final var image = ImageIO.read(file);
+            System.out.println(file + " " + image.getWidth() + "x" + image.getHeight());
+            assertTrue("Fits frame", image.getWidth() <= 320 && image.getHeight() <= 200);
+            assertTrue("Fills frame", image.getWidth() >= 319 || image.getHeight() >= 199);
+        }
+
+        subAnnounce("Halving steps");
+        final var source = new BufferedImage(1000, 500, BufferedImage.TYPE_3BYTE_BGR);
+        final var plan = new TransformPlan(source, Orientation.CLOCKWISE);
+        plan.fitWithin(100, 0);
+        final var fitted = plan.apply(source);
+        assertTrue("Fitted", fitted.getWidth() == 100 && fitted.getHeight() == 200);
+    }
+
+    /**
+     * Test the JPEG encoder settings, reading back the frame header of the
+     * file written
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testJpegEncoder() throws IOException {
+        announce("test JPEG encoder settings");
+        final var options = new Options();
+        for (var option : new String[]{"--quality=90", "--progressive", "--optimizeHuffman",
+            "--chroma=444", "--stripMetadata"}) {
+            assertTrue("Option accepted", options.parseOption(option));
+        }
+        final var configuration = new Configuration();
+        configuration.setOptions(options);
+        final var encoder = new JpegEncoder(configuration);
+        final var file = Files.createTempFile("encoder", ".jpg");
+        encoder.write(new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR), file.toFile());
+        try (var input = ImageIO.createImageInputStream(file.toFile())) {
+            final var reader = ImageIO.getImageReaders(input).next();
+            reader.setInput(input);
+            assertTrue("Size", reader.getWidth(0) == 64 && reader.getHeight(0) == 48);
+            final var tree = reader.getImageMetadata(0).getAsTree("javax_imageio_jpeg_image_1.0");
+            final var variety = tree.getFirstChild();
+            assertFalse("No JFIF header", variety.hasChildNodes());
+            final var sof = ((org.w3c.dom.Element) tree).getElementsByTagName("sof").item(0);
+            final var attributes = sof.getAttributes();
+            assertTrue("Progressive", attributes.getNamedItem("process").getNodeValue().equals("2"));
+            final var luminance = sof.getFirstChild().getAttributes();
+            assertTrue("No chroma subsampling",
+                    luminance.getNamedItem("HsamplingFactor").getNodeValue().equals("1")
+                    && luminance.getNamedItem("VsamplingFactor").getNodeValue().equals("1"));
+            reader.dispose();
+        }
+        Files.delete(file);
+
+        subAnnounce("Run program with encoder settings");
+        new Fram().runProgram(new String[]{inputDirectory, outputDirectory,
+            "--quality=60", "--chroma=422", "--optimizeHuffman"});
+        for (var output : getOutputFiles()) {
+            assertTrue("Readable", ImageIO.read(output) != null);
+        }
+    }
+
+    /**
+     * Test that the pooled reader and writer give the right results when
+     * they are used again for images of different sizes and types
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPooledCodecs() throws IOException {
+        announce("test pooled image readers and writers");
+        final var encoder = new JpegEncoder(90);
+        final var file = Files.createTempFile("pooled", ".jpg");
+        for (var size : new int[]{200, 40, 120}) {
+            final var image = new BufferedImage(size, size / 2, BufferedImage.TYPE_3BYTE_BGR);
+            final var graphics = image.createGraphics();
+            graphics.setColor(Color.RED);
+            graphics.fillRect(0, 0, size, size / 2);
+            graphics.dispose();
+            encoder.write(image, file.toFile());
+            final var decoded = ImageDecoder.read(file, 0, 0);
+            assertTrue("Size", decoded.getWidth() == size && decoded.getHeight() == size / 2);
+            final var rgb = decoded.getRGB(size / 2, size / 4);
+            assertTrue("Colour", ((rgb >> 16) & 0xff) > 200 && (rgb & 0xff) < 50);
+        }
+        final var png = Files.createTempFile("pooled", ".png");
+        ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "png", png.toFile());
+        assertTrue("Other formats", ImageDecoder.read(png, 0, 0).getWidth() == 30);
+        Files.delete(png);
+        Files.delete(file);
+    }
+
+    /**
+     * Test that released images are leased again for the same size only
+     */
+    @Test
+    public void testRasterPool() {
+        announce("test raster pool");
+        final var image = RasterPool.acquire(123, 45);
+        assertTrue("Type", image.getType() == BufferedImage.TYPE_3BYTE_BGR);
+        RasterPool.release(image);
+        assertFalse("Different size", RasterPool.acquire(45, 123) == image);
+        assertTrue("Reused", RasterPool.acquire(123, 45) == image);
+        final var other = new BufferedImage(123, 45, BufferedImage.TYPE_INT_RGB);
+        RasterPool.release(other);
+        assertFalse("Other types not pooled", RasterPool.acquire(123, 45) == other);
+    }
+
+    /**
+     * Test that white borders are found exactly, at full resolution and
+     * through the reduced copy, despite dust on them
+     */
+    @Test
+    public void testBorderProcessor() {
+        announce("test border processor");
+        for (final var size : new int[]{300, 2000}) {
+            for (final var type : new int[]{BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB}) {
+                final var image = new BufferedImage(size, size * 3 / 4, type);
+                final var graphics2d = image.createGraphics();
+                graphics2d.setColor(Color.white);
+                graphics2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+                final var inside = new Rectangle(37, 51, image.getWidth() - 37 - 23,
+                        image.getHeight() - 51 - 64);
+                graphics2d.setColor(new Color(90, 120, 60));
+                graphics2d.fill(inside);
+                // A light corner in the picture and a speck of dust on the
+                // border
+                graphics2d.setColor(new Color(230, 230, 230));
+                graphics2d.fillRect(inside.x, inside.y, 10, 10);
+                graphics2d.setColor(Color.black);
+                graphics2d.fillRect(5, 5, 2, 2);
+                graphics2d.dispose();
+                final var borderProcessor = new BorderProcessor(image);
+                assertTrue("Border", borderProcessor.hasBorder());
+                assertTrue("Crop " + size + " " + type + " "
+                        + borderProcessor.getCropRectangle(),
+                        borderProcessor.getCropRectangle().equals(inside));
+                final var cropped = borderProcessor.removeBorder();
+                assertTrue("Cropped size", cropped.getWidth() == inside.width
+                        && cropped.getHeight() == inside.height);
+            }
+        }
+        final var noBorder = new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR);
+        final var borderProcessor = new BorderProcessor(noBorder);
+        assertFalse("No border", borderProcessor.hasBorder());
+        assertTrue("Whole image", borderProcessor.getCropRectangle()
+                .equals(new Rectangle(0, 0, 400, 300)));
+    }
+
+    /**
+     * Test that the border crop is shared between scans in a directory once
+     * a few agree, and that a scan which doesn't fit it is scanned in full
+     */
+    @Test
+    public void testCropModel() {
+        announce("test crop model");
+        final var cropModel = new CropModel();
+        final var directory = new File("1987 11, CERN").toPath();
+        final var insides = new Rectangle[]{new Rectangle(40, 30, 520, 400),
+            new Rectangle(41, 30, 520, 401), new Rectangle(40, 31, 519, 400)};
+        for (final var inside : insides) {
+            assertTrue("Sample", cropModel.getCropRectangle(directory,
+                    makeScan(inside)).equals(inside));
+        }
+        // Only what is inside all of the sampled borders is kept
+        final var shared = new Rectangle(41, 31, 518, 399);
+        assertTrue("Shared", cropModel.getCropRectangle(directory,
+                makeScan(new Rectangle(40, 30, 521, 401))).equals(shared));
+        final var different = new Rectangle(100, 80, 300, 200);
+        assertTrue("Different", cropModel.getCropRectangle(directory,
+                makeScan(different)).equals(different));
+        assertTrue("Other directory", cropModel.getCropRectangle(
+                new File("other").toPath(), makeScan(insides[1])).equals(insides[1]));
+    }
+
+    /**
+     * Make an image which looks like a scan with a white border
+     *
+     * @param inside area of the picture inside the border
+     * @return the image
+     */
+    private static BufferedImage makeScan(Rectangle inside) {
+        final var image = new BufferedImage(600, 460, BufferedImage.TYPE_3BYTE_BGR);
+        final var graphics2d = image.createGraphics();
+        graphics2d.setColor(Color.white);
+        graphics2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics2d.setColor(new Color(70, 50, 110));
+        graphics2d.fill(inside);
+        graphics2d.dispose();
+        return image;
+    }
+
+    /**
+     * Test that cached annotation labels give the same pixels as drawing the
+     * text directly, including when they run off the edge of the image
+     */
+    @Test
+    public void testAnnotationRenderer() {
+        announce("test annotation renderer");
+        for (final var type : new int[]{BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_BYTE_GRAY}) {
+            final var expected = new BufferedImage(200, 60, type);
+            final var graphics2d = expected.createGraphics();
+            graphics2d.setFont(new Font("TimesRoman", Font.PLAIN, 24));
+            graphics2d.setColor(Color.white);
+            graphics2d.drawString("fram 000123", 5, 30);
+            graphics2d.drawString("fram 000123", 150, 70);
+            graphics2d.dispose();
+            final var actual = new BufferedImage(200, 60, type);
+            // Twice each, so the second comes from the cache
+            for (var pass = 0; pass < 2; pass++) {
+                AnnotationRenderer.draw(actual, "fram 000123", 24, Color.white, 5, 30);
+                AnnotationRenderer.draw(actual, "fram 000123", 24, Color.white, 150, 70);
+            }
+            assertSamePixels(expected, actual);
+        }
+    }
+
+    /**
+     * Test the area averaging and Lanczos filters, with the orientation
+     * corrected in the same pass
+     */
+    @Test
+    public void testResamplingFilters() {
+        announce("test resampling filters");
+        // Blocks of 4x4 pixels, each a different colour
+        final var source = new BufferedImage(96, 64, BufferedImage.TYPE_3BYTE_BGR);
+        for (var y = 0; y < source.getHeight(); y++) {
+            for (var x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, new Color(x / 4 * 10, y / 4 * 15, 100).getRGB());
+            }
+        }
+        final var upright = new TransformPlan(source, Orientation.NONE);
+        upright.setFilter(ResamplingFilter.AREA);
+        upright.fitWithin(24, 16);
+        final var reduced = upright.apply(source);
+        assertTrue("Block average", reduced.getRGB(1, 2) == new Color(10, 30, 100).getRGB());
+        for (var orientation : Orientation.values()) {
+            subAnnounce(orientation.toString());
+            final var plan = new TransformPlan(source, orientation);
+            plan.setFilter(ResamplingFilter.AREA);
+            plan.fitWithin(plan.getWidth() / 4, plan.getHeight() / 4);
+            final var actual = plan.apply(source);
+            final var expected = OrientationKernel.correct(reduced, orientation);
+            assertSamePixels(expected, actual);
+        }
+
+        subAnnounce("Lanczos keeps a flat colour flat");
+        final var flat = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+        final var graphics = flat.getGraphics();
+        graphics.setColor(new Color(30, 140, 220));
+        graphics.fillRect(0, 0, 300, 200);
+        graphics.dispose();
+        for (var width : new int[]{70, 450}) {
+            final var plan = new TransformPlan(flat, Orientation.CLOCKWISE);
+            plan.setFilter(ResamplingFilter.LANCZOS);
+            plan.scaleToWidth(width);
+            final var resized = plan.apply(flat);
+            assertTrue("Size", resized.getWidth() == width
+                    && resized.getHeight() == width * 3 / 2);
+            for (var y = 0; y < resized.getHeight(); y += 7) {
+                for (var x = 0; x < resized.getWidth(); x += 7) {
+                    assertTrue("Flat", resized.getRGB(x, y) == flat.getRGB(0, 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that greyscale images stay single channel when rotated and
+     * resized, and that CMYK JPEGs written by Adobe software are converted
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testGreyscaleAndCmyk() throws IOException {
+        announce("test greyscale and CMYK images");
+        final var grey = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY);
+        for (var x = 0; x < 64; x++) {
+            for (var y = 0; y < 48; y++) {
+                grey.getRaster().setSample(x, y, 0, x < 32 ? 40 : 200);
+            }
+        }
+        final var file = Files.createTempFile("grey", ".jpg");
+        ImageIO.write(grey, "jpg", file.toFile());
+        final var decoded = ImageDecoder.read(file, 0, 0);
+        assertTrue("Greyscale", decoded.getType() == BufferedImage.TYPE_BYTE_GRAY);
+        final var plan = new TransformPlan(decoded, Orientation.CLOCKWISE);
+        plan.fitWithin(24, 24);
+        final var rotated = plan.apply(decoded);
+        assertTrue("Still greyscale", rotated.getType() == BufferedImage.TYPE_BYTE_GRAY);
+        assertTrue("Size", rotated.getWidth() == 18 && rotated.getHeight() == 24);
+        // The dark left half of the image is now at the bottom
+        assertTrue("Dark", Math.abs(rotated.getRaster().getSample(9, 20, 0) - 40) < 8);
+        assertTrue("Light", Math.abs(rotated.getRaster().getSample(9, 3, 0) - 200) < 8);
+        final var colour = ManipulateImage.make3ByteBgr(rotated);
+        assertTrue("Converted size", colour.getWidth() == 18 && colour.getHeight() == 24);
+
+        subAnnounce("CMYK with inverted values, showing magenta");
+        final var cmyk = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 16, 16, 4, null);
+        for (var x = 0; x < 16; x++) {
+            for (var y = 0; y < 16; y++) {
+                cmyk.setPixel(x, y, new int[]{255, 0, 255, 255});
+            }
+        }
+        final var writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (var output = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(output);
+            writer.write(new IIOImage(cmyk, null, null));
+        }
+        // Add the Adobe marker segment to the metadata and write it again
+        final IIOMetadata metadata;
+        try (var input = ImageIO.createImageInputStream(file.toFile())) {
+            final var reader = ImageIO.getImageReaders(input).next();
+            reader.setInput(input);
+            metadata = reader.getImageMetadata(0);
+            reader.dispose();
+        }
+        final var tree = (IIOMetadataNode) metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+        final var markers = tree.getElementsByTagName("markerSequence").item(0);
+        final var adobe = new IIOMetadataNode("app14Adobe");
+        adobe.setAttribute("version", "100");
+        adobe.setAttribute("flags0", "0");
+        adobe.setAttribute("flags1", "0");
+        adobe.setAttribute("transform", "0");
+        markers.insertBefore(adobe, markers.getFirstChild());
+        metadata.setFromTree("javax_imageio_jpeg_image_1.0", tree);
+        try (var output = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(output);
+            writer.write(new IIOImage(cmyk, null, metadata));
+        }
+        writer.dispose();
+        final var converted = ImageDecoder.read(file, 0, 0);
+        assertTrue("Converted", converted.getType() == BufferedImage.TYPE_3BYTE_BGR);
+        final var rgb = converted.getRGB(8, 8);
+        assertTrue("Magenta", ((rgb >> 16) & 0xff) > 240 && ((rgb >> 8) & 0xff) < 16
+                && (rgb & 0xff) > 240);
+
+        subAnnounce("CMYK only needing its orientation corrected is still converted");
+        final var cmykInput = new File("test_data", "cmykInput");
+        if (cmykInput.exists()) {
+            delete(cmykInput);
+        }
+        final var directory = new File(cmykInput, "2020 01, Scans");
+        assertTrue("Create input directory", directory.mkdirs());
+        Files.copy(file, new File(directory, "cmyk.jpg").toPath());
+        Files.delete(file);
+        final var cmykOutput = Files.createTempDirectory("cmyk").toFile();
+        assertTrue("Run", new Fram().runProgram(new String[]{cmykInput.getAbsolutePath(),
+            cmykOutput.getPath(), "--noDirectory=F", "--minimumWidth=1"}));
+        final var outputs = new File(cmykOutput, "000000").listFiles();
+        assertTrue("Output", outputs != null && outputs.length == 1);
+        try (var input = ImageIO.createImageInputStream(outputs[0])) {
+            final var reader = ImageIO.getImageReaders(input).next();
+            reader.setInput(input);
+            assertTrue("Three channels", reader.readRaster(0, null).getNumBands() == 3);
+            reader.dispose();
+        }
+        assertTrue("Delete output directory", delete(cmykOutput));
+        assertTrue("Delete input directory", delete(cmykInput));
+    }
+
+    /**
+     * Correct the orientation of a decoded image in the same way as the
+     * program does
+     *
+     * @param image the image
+     * @param orientation its orientation
+     * @return the corrected image
+     */
+    private BufferedImage correctOrientation(BufferedImage image, Orientation orientation) {
+        switch (orientation) {
+            case CLOCKWISE:
+                return ManipulateImage.rotate(image, -1);
+            case ANTICLOCKWISE:
+                return ManipulateImage.rotate(image, 1);
+            case UPSIDE_DOWN:
+                return ManipulateImage.rotate(image, 2);
+            case MIRROR_LEFT_RIGHT:
+                return ManipulateImage.mirror(image);
+            case MIRROR_TOP_BOTTOM:
+                return ManipulateImage.rotate(ManipulateImage.mirror(
+                        ManipulateImage.rotate(image, +1)), -1);
+            case ANTICLOCKWISE_AND_MIRROR:
+                return ManipulateImage.rotate(ManipulateImage.mirror(image), 1);
+            case CLOCKWISE_AND_MIRROR:
+                return ManipulateImage.rotate(ManipulateImage.mirror(image), -1);
+            default:
+                return image;
+        }
+    }
+
+    /**
+     * Make an image with a different colour in every pixel, for checking
+     * where the pixels end up
+     *
+     * @param width width in pixels
+     * @param height height in pixels
+     * @return TYPE_3BYTE_BGR image
+     */
+    private static BufferedImage makeGradient(int width, int height) {
+        final var image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (var y = 0; y < height; y++) {
+            for (var x = 0; x < width; x++) {
+                image.setRGB(x, y, new Color(x * 2, y * 3, (x * y) % 256).getRGB());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Check that two images are the same size with exactly the same pixels
+     *
+     * @param expected expected image
+     * @param actual actual image
+     */
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertTrue("Width", actual.getWidth() == expected.getWidth());
+        assertTrue("Height", actual.getHeight() == expected.getHeight());
+        for (var y = 0; y < actual.getHeight(); y++) {
+            for (var x = 0; x < actual.getWidth(); x++) {
+                assertTrue("Pixel " + x + "," + y, actual.getRGB(x, y) == expected.getRGB(x, y));
+            }
+        }
+    }
+
     /**
      * Get a list of the output files from the program
      *